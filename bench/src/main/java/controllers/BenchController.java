@@ -0,0 +1,50 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package controllers;
+
+import play.Logger;
+import play.modules.betterlogs.LogCalls;
+import play.modules.betterlogs.Trace;
+
+public class BenchController implements LogCalls {
+
+    private int traced_;
+
+    public void noArgs() {
+        Logger.info("no argument");
+    }
+
+    public void oneArg(Object a) {
+        Logger.info("one argument: %s", a);
+    }
+
+    public void fourArgs(Object a, Object b, Object c, Object d) {
+        Logger.info("four arguments: %s, %s, %s, %s", a, b, c, d);
+    }
+
+    public void throwable(Throwable t, Object a) {
+        Logger.warn(t, "failed with %s", a);
+    }
+
+    public void disabled(Object a) {
+        Logger.debug("disabled: %s", a);
+    }
+
+    @Trace
+    public void traced() {
+        traced_++; // empty methods are not traced
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package controllers;
+
+import java.util.List;
+
+import models.LoadCatalog;
+import models.LoadOrder;
+import play.Logger;
+import play.modules.betterlogs.LoadWork;
+
+public class LoadOrders implements LoadWork {
+
+    private final LoadCatalog catalog_ = new LoadCatalog(64);
+
+    public void browse(int request) {
+        Logger.debug("browse request %s", request);
+        List<String> page = catalog_.page(request % 8, 8);
+        Logger.debug("page %s: %s", request % 8, page);
+        Logger.info("browse %s: %s items", request, page.size());
+    }
+
+    public void order(int request) {
+        LoadOrder order = new LoadOrder(request);
+        for (int i = 0; i < 3; ++i)
+            order.add(catalog_.item(request + i), 1 + i);
+        Logger.info("order %s placed by %s: %s lines, total %s", request, order.getCustomer(), order.getLines(),
+                order.total());
+    }
+
+    public void fail(int request) {
+        try {
+            catalog_.reserve(request);
+        } catch (IllegalStateException e) {
+            Logger.warn(e, "order %s failed", request);
+        }
+    }
+}
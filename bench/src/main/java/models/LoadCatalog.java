@@ -0,0 +1,49 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import play.Logger;
+
+public class LoadCatalog {
+
+    private final String[] items_;
+
+    public LoadCatalog(int size) {
+        items_ = new String[size];
+        for (int i = 0; i < size; ++i)
+            items_[i] = "item-" + i;
+    }
+
+    public String item(int i) {
+        return items_[i % items_.length];
+    }
+
+    public List<String> page(int page, int size) {
+        List<String> list = new ArrayList<String>(size);
+        for (int i = 0; i < size; ++i)
+            list.add(item(page * size + i));
+        Logger.debug("page %s of %s items", page, list.size());
+        return list;
+    }
+
+    public void reserve(int request) {
+        Logger.info("reserving %s for request %s", item(request), request);
+        throw new IllegalStateException("out of stock: " + item(request));
+    }
+}
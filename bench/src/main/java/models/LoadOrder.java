@@ -0,0 +1,53 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import play.Logger;
+
+public class LoadOrder {
+
+    private final String customer_;
+    private final List<String> items_ = new ArrayList<String>();
+    private final List<Integer> quantities_ = new ArrayList<Integer>();
+
+    public LoadOrder(int request) {
+        customer_ = "customer-" + request % 100;
+    }
+
+    public void add(String item, int quantity) {
+        items_.add(item);
+        quantities_.add(quantity);
+        Logger.debug("%s: %s x %s", customer_, item, quantity);
+    }
+
+    public String getCustomer() {
+        return customer_;
+    }
+
+    public int getLines() {
+        return items_.size();
+    }
+
+    public long total() {
+        long total = 0;
+        for (int i = 0; i < items_.size(); ++i)
+            total += items_.get(i).length() * quantities_.get(i) * 100L;
+        return total;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.spi.LoggingEvent;
+
+import play.Logger;
+import play.Play;
+import play.classloading.ApplicationClasses;
+import play.classloading.ApplicationClasses.ApplicationClass;
+import play.vfs.VirtualFile;
+
+/**
+ * Set up Play, <code>play.Logger</code> and BetterLogs once per forked JVM.
+ * The log4j events are discarded by a no-op appender, so the benchmarks
+ * measure the logging path without any I/O. {@link LoadHarness} sends them
+ * to a file instead.
+ */
+final class BenchSupport {
+
+    static final String DEFAULT_PREFIX = "[%relativeFile:%line|%thread] %method() ::";
+    static final String STATIC_PREFIX = "%class.%method:%line";
+    static final String THREAD_PREFIX = "[%thread]";
+
+    private static BetterLogsPlugin plugin_;
+
+    private BenchSupport() {
+    }
+
+    /**
+     * A log4j appender discarding the events
+     */
+    static final class NoopAppender extends AppenderSkeleton {
+        @Override
+        protected void append(LoggingEvent event) {
+        }
+
+        public void close() {
+        }
+
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+
+    /**
+     * Configure BetterLogs with the prefix specified, INFO level and latency
+     * histograms on. The configuration is read once: JMH forks a JVM for each
+     * combination of parameters
+     */
+    static void setUp(String prefix) {
+        setUp(prefix, "play");
+    }
+
+    /**
+     * Same as {@link #setUp(String)} with the backend specified, see {@link LogBackend}
+     */
+    static synchronized void setUp(String prefix, String backend) {
+        if (null != plugin_)
+            return;
+        Properties conf = new Properties();
+        conf.setProperty("application.log", "INFO");
+        conf.setProperty(BetterLogsPlugin.CONF_PREFIX, prefix);
+        conf.setProperty(BetterLogsPlugin.CONF_TRACE_HISTOGRAM, "true");
+        conf.setProperty(BetterLogsPlugin.CONF_BACKEND, backend);
+        setUp(conf, new NoopAppender(), true);
+    }
+
+    /**
+     * Set up Play with the configuration specified, the log4j events sent to
+     * the appender, and BetterLogs started if <code>betterLogs</code> is true
+     */
+    static synchronized void setUp(Properties conf, Appender appender, boolean betterLogs) {
+        if (null != plugin_)
+            return;
+        Play.configuration = conf;
+        Play.id = "";
+        Play.mode = Play.Mode.PROD;
+        Play.applicationPath = new File(System.getProperty("java.io.tmpdir"), "betterlogs-bench");
+        Play.roots = new ArrayList<VirtualFile>();
+        Play.roots.add(VirtualFile.open(Play.applicationPath));
+        Play.javaPath = new ArrayList<VirtualFile>();
+        Play.javaPath.add(VirtualFile.open(new File(Play.applicationPath, "app")));
+        Play.classes = new ApplicationClasses();
+
+        Logger.init();
+        Logger.setUp("INFO");
+        org.apache.log4j.Logger.getRootLogger().removeAllAppenders();
+        org.apache.log4j.Logger.getRootLogger().addAppender(appender);
+        if (null != Logger.log4j)
+            Logger.log4j.removeAllAppenders();
+
+        BetterLogsPlugin plugin = new BetterLogsPlugin();
+        if (betterLogs) {
+            plugin.onConfigurationRead();
+            plugin.onApplicationStart();
+        }
+        plugin_ = plugin;
+    }
+
+    /**
+     * Stop BetterLogs, writing what is still buffered
+     */
+    static synchronized void tearDown() {
+        if (null != plugin_)
+            plugin_.onApplicationStop();
+    }
+
+    /**
+     * Enhance the class specified the way Play does for application classes
+     * and load it in a dedicated class loader
+     */
+    static <T> T enhance(Class<? extends T> cls) throws Exception {
+        @SuppressWarnings("unchecked")
+        T t = (T) enhance(new Class<?>[] { cls }).loadClass(cls.getName()).newInstance();
+        return t;
+    }
+
+    /**
+     * Enhance the classes specified the way Play does for application classes
+     * and load them in a dedicated class loader, so that they see each other
+     * enhanced. The other classes are loaded by the parent loader
+     */
+    static ClassLoader enhance(Class<?>[] classes) throws Exception {
+        final Map<String, byte[]> enhanced = new HashMap<String, byte[]>();
+        for (Class<?> cls : classes) {
+            ApplicationClass applicationClass = new ApplicationClass();
+            applicationClass.name = cls.getName();
+            applicationClass.javaFile = VirtualFile.open(new File(Play.applicationPath, "app/"
+                    + cls.getName().replace('.', '/') + ".java"));
+            applicationClass.javaByteCode = bytes_(cls);
+            applicationClass.enhancedByteCode = applicationClass.javaByteCode;
+            plugin_.enhance(applicationClass);
+            enhanced.put(cls.getName(), applicationClass.enhancedByteCode);
+        }
+        return new ClassLoader(classes[0].getClassLoader()) {
+            @Override
+            protected synchronized Class<?> loadClass(String n, boolean resolve) throws ClassNotFoundException {
+                byte[] b = enhanced.get(n);
+                if (null == b)
+                    return super.loadClass(n, resolve);
+                Class<?> c = findLoadedClass(n);
+                if (null == c)
+                    c = defineClass(n, b, 0, b.length);
+                return c;
+            }
+        };
+    }
+
+    private static byte[] bytes_(Class<?> cls) throws Exception {
+        InputStream in = cls.getResourceAsStream("/" + cls.getName().replace('.', '/') + ".class");
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = in.read(buf); n > 0; n = in.read(buf))
+                out.write(buf, 0, n);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
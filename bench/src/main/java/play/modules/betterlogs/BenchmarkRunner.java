@@ -0,0 +1,56 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the benchmarks with 1, 4 and 16 threads, reporting the time and the
+ * bytes allocated per operation (GC profiler). Each run is saved to
+ * <code>jmh-result-t&lt;threads&gt;.json</code> to be compared later.
+ *
+ * <pre>
+ * java -jar bench/target/benchmarks.jar [benchmark regexp...]
+ * java -Dthreads=1,4 -jar bench/target/benchmarks.jar EnhancedCallSite
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String threads = System.getProperty("threads", "1,4,16");
+        for (String s : threads.split(",")) {
+            int n = Integer.parseInt(s.trim());
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .threads(n)
+                    .mode(Mode.AverageTime)
+                    .timeUnit(TimeUnit.NANOSECONDS)
+                    .addProfiler(GCProfiler.class)
+                    .result("jmh-result-t" + n + ".json")
+                    .resultFormat(ResultFormatType.JSON);
+            for (String include : args)
+                options.include(include);
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import controllers.BenchController;
+
+/**
+ * The log statements of {@link BenchController} as rewritten by
+ * {@link BetterLogsEnhancer}, compared with the same statements calling
+ * <code>play.Logger</code> directly (the <code>plain*</code> benchmarks, not
+ * affected by the prefix nor the backend)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnhancedCallSiteBenchmark {
+
+    @Param({ BenchSupport.DEFAULT_PREFIX, BenchSupport.STATIC_PREFIX, BenchSupport.THREAD_PREFIX })
+    public String prefix;
+
+    @Param({ "play", "log4j" })
+    public String backend;
+
+    private LogCalls enhanced_;
+    private LogCalls plain_;
+
+    private final Object a_ = "somebody@gmail.com";
+    private final Object b_ = Integer.valueOf(2);
+    private final Object c_ = Long.valueOf(1234567L);
+    private final Object d_ = Boolean.TRUE;
+    private final Throwable t_ = new IllegalStateException("boom");
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchSupport.setUp(prefix, backend);
+        enhanced_ = BenchSupport.enhance(BenchController.class);
+        plain_ = new BenchController();
+    }
+
+    @Benchmark
+    public void enhancedNoArgs() {
+        enhanced_.noArgs();
+    }
+
+    @Benchmark
+    public void enhancedOneArg() {
+        enhanced_.oneArg(a_);
+    }
+
+    @Benchmark
+    public void enhancedFourArgs() {
+        enhanced_.fourArgs(a_, b_, c_, d_);
+    }
+
+    @Benchmark
+    public void enhancedThrowable() {
+        enhanced_.throwable(t_, a_);
+    }
+
+    @Benchmark
+    public void enhancedDisabled() {
+        enhanced_.disabled(a_);
+    }
+
+    @Benchmark
+    public void enhancedTraced() {
+        enhanced_.traced();
+    }
+
+    @Benchmark
+    public void plainOneArg() {
+        plain_.oneArg(a_);
+    }
+
+    @Benchmark
+    public void plainFourArgs() {
+        plain_.fourArgs(a_, b_, c_, d_);
+    }
+
+    @Benchmark
+    public void plainDisabled() {
+        plain_.disabled(a_);
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import models.LoadCatalog;
+import models.LoadOrder;
+
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.PatternLayout;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import controllers.LoadOrders;
+
+/**
+ * End-to-end load test of a synthetic application ({@link LoadOrders} and the
+ * models it calls) logging to a file, run in a forked JVM for each mode:
+ * <ul>
+ * <li><code>none</code>: the classes as compiled, calling
+ * <code>play.Logger</code> directly</li>
+ * <li><code>logs</code>: the log calls rewritten by {@link BetterLogsEnhancer},
+ * trace disabled</li>
+ * <li><code>trace</code>: the log calls rewritten and every method traced
+ * (TRACE mode), entry/exit logged at INFO</li>
+ * </ul>
+ * The threads run browse, order and fail operations in a fixed mix, first for
+ * the warmup then for the measured duration. Each mode reports the throughput,
+ * the latency percentiles of each operation, the allocation rate of the JVM,
+ * the GC pauses and the bytes written to the log file, and the modes are
+ * compared at the end. No Play server nor network is needed: the classes are
+ * enhanced offline by {@link BenchSupport}.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar play.modules.betterlogs.LoadHarness
+ * java -Dthreads=32 -Dduration=30 -Dmodes=logs,trace -Dbetterlogs.async.enabled=true \
+ *      -cp bench/target/benchmarks.jar play.modules.betterlogs.LoadHarness
+ * </pre>
+ *
+ * Options (system properties, passed to the forked JVMs with the other JVM
+ * arguments): <code>threads</code> (16), <code>duration</code> and
+ * <code>warmup</code> in seconds (10 and 5), <code>modes</code>
+ * (none,logs,trace), <code>dir</code> the directory of the log files
+ * (java.io.tmpdir) and any <code>betterlogs.*</code> configuration, applied
+ * to the logs and trace modes.
+ */
+public class LoadHarness {
+
+    private static final String MODE = "betterlogs.load.mode";
+    private static final String RESULT = "result";
+    private static final String[] OPERATIONS = { "browse", "order", "fail" };
+    private static final int BROWSE = 0, ORDER = 1, FAIL = 2;
+
+    private static final int WARMUP = 0, MEASURE = 1, DONE = 2;
+    private static volatile int phase_ = WARMUP;
+
+    public static void main(String[] args) throws Exception {
+        String mode = System.getProperty(MODE);
+        if (null != mode) {
+            run_(mode);
+            System.exit(0);
+        }
+        Map<String, Map<String, String>> results = new LinkedHashMap<String, Map<String, String>>();
+        for (String m : System.getProperty("modes", "none,logs,trace").split(",")) {
+            Map<String, String> result = fork_(m.trim());
+            if (null != result)
+                results.put(m.trim(), result);
+        }
+        System.out.println();
+        System.out.println(String.format("%-6s %12s %12s %12s %12s %10s %10s %8s %10s %10s %12s", "mode", "ops/s",
+                "browse p99", "order p99", "fail p99", "alloc MB/s", "alloc B/op", "GC", "GC max ms",
+                "written MB", "written B/op"));
+        for (Map.Entry<String, Map<String, String>> e : results.entrySet()) {
+            Map<String, String> r = e.getValue();
+            System.out.println(String.format("%-6s %12s %12s %12s %12s %10s %10s %8s %10s %10s %12s", e.getKey(),
+                    r.get("ops/s"), r.get("browse.p99") + "ms", r.get("order.p99") + "ms", r.get("fail.p99") + "ms",
+                    r.get("alloc.MB/s"), r.get("alloc.B/op"), r.get("gc.count"), r.get("gc.maxMs"),
+                    r.get("written.MB"), r.get("written.B/op")));
+        }
+    }
+
+    /*
+     * Run a mode in a new JVM with the same arguments, and parse its result
+     */
+    private static Map<String, String> fork_(String mode) throws Exception {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-D" + MODE + "=" + mode);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LoadHarness.class.getName());
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+        Map<String, String> result = null;
+        try {
+            for (String line = in.readLine(); null != line; line = in.readLine()) {
+                if (line.startsWith(RESULT + " ")) {
+                    result = new HashMap<String, String>();
+                    for (String pair : line.substring(RESULT.length() + 1).split(" ")) {
+                        int i = pair.indexOf('=');
+                        result.put(pair.substring(0, i), pair.substring(i + 1));
+                    }
+                } else {
+                    System.out.println(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if (0 != process.waitFor() || null == result)
+            System.out.println(mode + ": failed");
+        return result;
+    }
+
+    /**
+     * A request thread running the operations in a fixed mix: 1 failed order
+     * out of 50 requests, then half orders and half browses
+     */
+    private static final class Worker extends Thread {
+
+        private final LoadWork work_;
+        private final int first_;
+        private final int step_;
+        final LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+
+        Worker(LoadWork work, int id, int threads) {
+            super("load-" + id);
+            work_ = work;
+            first_ = id;
+            step_ = threads;
+            for (int i = 0; i < histograms.length; ++i)
+                histograms[i] = new LatencyHistogram();
+        }
+
+        @Override
+        public void run() {
+            int phase = WARMUP;
+            for (int request = first_;; request += step_) {
+                int p = phase_;
+                if (p != phase) {
+                    if (DONE == p)
+                        return;
+                    for (LatencyHistogram histogram : histograms)
+                        histogram.reset();
+                    phase = p;
+                }
+                int operation = 0 == request % 50 ? FAIL : (0 == request % 2 ? ORDER : BROWSE);
+                long start = System.nanoTime();
+                switch (operation) {
+                case BROWSE:
+                    work_.browse(request);
+                    break;
+                case ORDER:
+                    work_.order(request);
+                    break;
+                default:
+                    work_.fail(request);
+                }
+                histograms[operation].record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * The GC pauses notified while measuring
+     */
+    private static final class GcListener implements NotificationListener {
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+        final AtomicLong maxMillis = new AtomicLong();
+
+        void register() {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter)
+                    ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+            }
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())
+                    || MEASURE != phase_)
+                return;
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                    .from((CompositeData) notification.getUserData());
+            // the cycles of the concurrent collectors are not pauses
+            if (info.getGcAction().contains("cycle"))
+                return;
+            long millis = info.getGcInfo().getDuration();
+            count.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            long max = maxMillis.get();
+            while (millis > max && !maxMillis.compareAndSet(max, millis))
+                max = maxMillis.get();
+        }
+    }
+
+    private static void run_(String mode) throws Exception {
+        int threads = Integer.getInteger("threads", 16);
+        int duration = Integer.getInteger("duration", 10);
+        int warmup = Integer.getInteger("warmup", 5);
+        boolean betterLogs = !"none".equals(mode);
+        if (betterLogs && !"logs".equals(mode) && !"trace".equals(mode))
+            throw new IllegalArgumentException("unknown mode: " + mode + ", expected none, logs or trace");
+
+        Properties conf = new Properties();
+        conf.setProperty("application.log", "INFO");
+        if ("trace".equals(mode)) {
+            conf.setProperty(BetterLogsPlugin.CONF_TRACE_LEVEL, "INFO");
+            conf.setProperty(BetterLogsPlugin.CONF_TRACE_MODE, "TRACE");
+        } else {
+            // below the application level: no trace probe
+            conf.setProperty(BetterLogsPlugin.CONF_TRACE_LEVEL, "DEBUG");
+        }
+        // no enhancement from a previous run
+        conf.setProperty(BetterLogsPlugin.CONF_ENHANCE_CACHE, "false");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("betterlogs.") && !MODE.equals(name))
+                conf.setProperty(name, System.getProperty(name));
+        }
+        File file = new File(System.getProperty("dir", System.getProperty("java.io.tmpdir")),
+                "betterlogs-load-" + mode + ".log");
+        FileAppender appender = new FileAppender(new PatternLayout("%d{ABSOLUTE} %-5p ~ %m%n"), file.getPath(), false);
+        BenchSupport.setUp(conf, appender, betterLogs);
+        LoadWork work = betterLogs ? (LoadWork) BenchSupport
+                .enhance(new Class<?>[] { LoadOrders.class, LoadCatalog.class, LoadOrder.class })
+                .loadClass(LoadOrders.class.getName()).newInstance() : new LoadOrders();
+
+        Worker[] workers = new Worker[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Worker(work, i, threads);
+            workers[i].start();
+        }
+        GcListener gc = new GcListener();
+        gc.register();
+        Thread.sleep(warmup * 1000L);
+
+        long written = file.length();
+        Map<Long, Long> allocated = allocated_();
+        long start = System.nanoTime();
+        phase_ = MEASURE;
+        Thread.sleep(duration * 1000L);
+        phase_ = DONE;
+        long nanos = System.nanoTime() - start;
+        long allocatedBytes = allocatedSince_(allocated);
+        for (Worker worker : workers)
+            worker.join();
+        BenchSupport.tearDown();
+        appender.close();
+        written = file.length() - written;
+
+        LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+        long ops = 0;
+        for (int i = 0; i < histograms.length; ++i) {
+            histograms[i] = new LatencyHistogram();
+            for (Worker worker : workers)
+                worker.histograms[i].addTo(histograms[i]);
+            ops += histograms[i].count();
+        }
+        double seconds = nanos / 1e9;
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        result.put("ops/s", String.valueOf((long) (ops / seconds)));
+        for (int i = 0; i < histograms.length; ++i)
+            result.put(OPERATIONS[i] + ".p99", TimeTracker.millis(histograms[i].percentile(0.99)));
+        result.put("alloc.MB/s", String.format("%.1f", allocatedBytes / seconds / 1e6));
+        result.put("alloc.B/op", String.valueOf(0 == ops ? 0 : allocatedBytes / ops));
+        result.put("gc.count", String.valueOf(gc.count.get()));
+        result.put("gc.totalMs", String.valueOf(gc.totalMillis.get()));
+        result.put("gc.maxMs", String.valueOf(gc.maxMillis.get()));
+        result.put("written.MB", String.format("%.1f", written / 1e6));
+        result.put("written.B/op", String.valueOf(0 == ops ? 0 : written / ops));
+
+        System.out.println(String.format("%s: %s threads, %ss: %s ops/s", mode, threads, duration, result.get("ops/s")));
+        for (int i = 0; i < histograms.length; ++i)
+            System.out.println(String.format("  %-6s %s", OPERATIONS[i], histograms[i]));
+        System.out.println(String.format("  allocated %s MB/s, %s bytes/op", result.get("alloc.MB/s"), result.get("alloc.B/op")));
+        System.out.println(String.format("  GC: %s pauses, %sms total, %sms max", result.get("gc.count"),
+                result.get("gc.totalMs"), result.get("gc.maxMs")));
+        System.out.println(String.format("  written %s MB, %s bytes/op, to %s", result.get("written.MB"),
+                result.get("written.B/op"), file));
+        if (betterLogs)
+            System.out.println("  enhanced " + BetterLogsEnhancer.stats());
+        StringBuilder sb = new StringBuilder(RESULT);
+        for (Map.Entry<String, String> e : result.entrySet())
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+        System.out.println(sb);
+    }
+
+    /*
+     * The bytes allocated by each live thread so far, by thread id
+     */
+    private static Map<Long, Long> allocated_() {
+        Map<Long, Long> allocated = new HashMap<Long, Long>();
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return allocated;
+        long[] ids = bean.getAllThreadIds();
+        long[] bytes = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; ++i) {
+            if (bytes[i] >= 0)
+                allocated.put(ids[i], bytes[i]);
+        }
+        return allocated;
+    }
+
+    /*
+     * The bytes allocated since the snapshot specified by the threads still
+     * alive, the threads started since included
+     */
+    private static long allocatedSince_(Map<Long, Long> snapshot) {
+        long total = 0;
+        for (Map.Entry<Long, Long> e : allocated_().entrySet()) {
+            Long before = snapshot.get(e.getKey());
+            total += e.getValue() - (null == before ? 0 : before);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+/**
+ * The operations of the synthetic application driven by {@link LoadHarness},
+ * implemented by an application class which is run both as is and enhanced
+ * by BetterLogs
+ */
+public interface LoadWork {
+
+    /**
+     * Browse a page of the catalog: DEBUG log calls below the level and one
+     * INFO
+     */
+    void browse(int request);
+
+    /**
+     * Place an order: nested calls of the models with INFO and DEBUG log
+     * calls
+     */
+    void order(int request);
+
+    /**
+     * A failed order: a WARN with a stack trace
+     */
+    void fail(int request);
+}
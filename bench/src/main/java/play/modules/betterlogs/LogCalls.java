@@ -0,0 +1,41 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+/**
+ * The log statements benchmarked, implemented by an application class
+ * which is benchmarked both as is and enhanced by BetterLogs
+ */
+public interface LogCalls {
+
+    void noArgs();
+
+    void oneArg(Object a);
+
+    void fourArgs(Object a, Object b, Object c, Object d);
+
+    void throwable(Throwable t, Object a);
+
+    /**
+     * A DEBUG log call while the level is INFO
+     */
+    void disabled(Object a);
+
+    /**
+     * A method annotated with @Trace, without any log call
+     */
+    void traced();
+}
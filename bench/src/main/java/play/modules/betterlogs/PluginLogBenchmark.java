@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The generic dispatcher {@link BetterLogsPlugin#log} still called by
+ * classes enhanced by previous versions, and its argument flattening
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PluginLogBenchmark {
+
+    @Param({ BenchSupport.DEFAULT_PREFIX, BenchSupport.STATIC_PREFIX, BenchSupport.THREAD_PREFIX })
+    public String prefix;
+
+    @Param({ "0", "1", "4" })
+    public int argc;
+
+    @Param({ "false", "true" })
+    public boolean throwable;
+
+    // the $args of a rewritten play.Logger call: [throwable,] pattern, Object[]
+    private Object[] args_;
+    private int skip_;
+
+    @Setup
+    public void setUp() {
+        BenchSupport.setUp(prefix);
+        Object[] varargs = new Object[argc];
+        StringBuilder pattern = new StringBuilder("message");
+        for (int i = 0; i < argc; ++i) {
+            varargs[i] = Integer.valueOf(i);
+            pattern.append(" %s");
+        }
+        if (throwable) {
+            args_ = new Object[] { new IllegalStateException("boom"), pattern.toString(), varargs };
+            skip_ = 2;
+        } else {
+            args_ = new Object[] { pattern.toString(), varargs };
+            skip_ = 1;
+        }
+    }
+
+    @Benchmark
+    public void log() {
+        BetterLogsPlugin.log(throwable ? "warn" : "info", "controllers.BenchController", "BenchController",
+                "controllers", "oneArg", "(Ljava/lang/Object;)V", "BenchController.java",
+                "/app/controllers/BenchController.java", 42, args_);
+    }
+
+    @Benchmark
+    public Object[] handleLogArgs() {
+        return BetterLogsPlugin.handleLogArgs(args_, skip_);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The trace theme checks and the time tracking done on entry/exit of the
+ * traced methods
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark {
+
+    private final String[] matching_ = { "order" };
+    private final String[] notMatching_ = { "payment", "shipping" };
+    private final String[] none_ = {};
+    private TraceSite site_;
+
+    @Setup
+    public void setUp() {
+        BenchSupport.setUp(BenchSupport.DEFAULT_PREFIX);
+        BetterLogsPlugin.setTraceThemes("order", "user");
+        site_ = new TraceSite("controllers.BenchController", "traced", "()V", matching_);
+    }
+
+    @Benchmark
+    public boolean themesMatch() {
+        return BetterLogsPlugin.traceThemesMatch(matching_);
+    }
+
+    @Benchmark
+    public boolean themesNoMatch() {
+        return BetterLogsPlugin.traceThemesMatch(notMatching_);
+    }
+
+    @Benchmark
+    public boolean themesDefault() {
+        return BetterLogsPlugin.traceThemesMatch(none_);
+    }
+
+    @Benchmark
+    public boolean siteEnabled() {
+        return site_.enabled();
+    }
+
+    @Benchmark
+    public String siteLabel() {
+        return site_.label();
+    }
+
+    @Benchmark
+    public long timeTracker() {
+        TimeTracker.enter();
+        return TimeTracker.exit();
+    }
+
+    /**
+     * Including the record in the latency histogram of the method
+     */
+    @Benchmark
+    public long timeTrackerSite() {
+        TimeTracker.enter();
+        return TimeTracker.exit(site_);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import play.Logger;
+
+/**
+ * Latency, request and error counts of one action.
+ *
+ * <p>The durations are recorded in nanoseconds into a {@link LatencyHistogram}
+ * chosen by the id of the calling thread out of a few stripes, so that
+ * concurrent requests seldom update the same counters. Recording is lock
+ * free; the stripes are merged when read, and moved to the totals by the
+ * periodic summary, see {@link #start(int)}.
+ */
+public final class ActionMetrics {
+
+    private static final int STRIPES = Math.min(16,
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+    // errors of stripe i at index i << PAD, one cache line apart
+    private static final int PAD = 3;
+
+    private static final ConcurrentHashMap<String, ActionMetrics> actions_ = new ConcurrentHashMap<String, ActionMetrics>();
+    private static final ThreadLocal<Invocation> invocation_ = new ThreadLocal<Invocation>() {
+        @Override
+        protected Invocation initialValue() {
+            return new Invocation();
+        }
+    };
+
+    /**
+     * Whether {@link #end(boolean)} records the duration of the actions
+     */
+    static volatile boolean enabled = false;
+    private static Timer timer_;
+    private static int interval_;
+
+    public final String action;
+    private final AtomicReferenceArray<LatencyHistogram> stripes_ = new AtomicReferenceArray<LatencyHistogram>(STRIPES);
+    private final AtomicLongArray errors_ = new AtomicLongArray(STRIPES << PAD);
+    // moved from the stripes by the summaries so far
+    private final LatencyHistogram total_ = new LatencyHistogram();
+    private long totalErrors_;
+
+    private ActionMetrics(String action) {
+        this.action = action;
+    }
+
+    /*
+     * The action being invoked on a thread
+     */
+    private static final class Invocation {
+        ActionMetrics metrics;
+        long start;
+    }
+
+    /**
+     * Start timing the action invoked on the current thread
+     */
+    static void begin(String action) {
+        Invocation invocation = invocation_.get();
+        invocation.metrics = null == action ? null : of_(action);
+        invocation.start = System.nanoTime();
+    }
+
+    /**
+     * Stop timing the action invoked on the current thread, and record its
+     * duration if enabled
+     *
+     * @return the duration in nanoseconds, -1 if {@link #begin(String)} has
+     *         not been called for this invocation or if it has already ended
+     */
+    static long end(boolean error) {
+        Invocation invocation = invocation_.get();
+        ActionMetrics metrics = invocation.metrics;
+        if (null == metrics)
+            return -1;
+        invocation.metrics = null;
+        long nanos = System.nanoTime() - invocation.start;
+        if (enabled)
+            metrics.record(nanos, error);
+        return nanos;
+    }
+
+    /**
+     * Forget the action invoked on the current thread, if not ended
+     */
+    static void clear() {
+        invocation_.get().metrics = null;
+    }
+
+    private static ActionMetrics of_(String action) {
+        ActionMetrics metrics = actions_.get(action);
+        if (null == metrics) {
+            ActionMetrics newMetrics = new ActionMetrics(action);
+            metrics = actions_.putIfAbsent(action, newMetrics);
+            if (null == metrics)
+                metrics = newMetrics;
+        }
+        return metrics;
+    }
+
+    public void record(long nanos, boolean error) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        LatencyHistogram histogram = stripes_.get(stripe);
+        if (null == histogram) {
+            stripes_.compareAndSet(stripe, null, new LatencyHistogram());
+            histogram = stripes_.get(stripe);
+        }
+        histogram.record(nanos);
+        if (error)
+            errors_.incrementAndGet(stripe << PAD);
+    }
+
+    /**
+     * The durations recorded since the start or the last reset
+     */
+    public synchronized LatencyHistogram histogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        total_.addTo(histogram);
+        for (int i = 0; i < STRIPES; ++i) {
+            LatencyHistogram stripe = stripes_.get(i);
+            if (null != stripe)
+                stripe.addTo(histogram);
+        }
+        return histogram;
+    }
+
+    public long count() {
+        return histogram().count();
+    }
+
+    public synchronized long errors() {
+        long errors = totalErrors_;
+        for (int i = 0; i < STRIPES; ++i)
+            errors += errors_.get(i << PAD);
+        return errors;
+    }
+
+    public synchronized void reset() {
+        total_.reset();
+        totalErrors_ = 0;
+        for (int i = 0; i < STRIPES; ++i) {
+            LatencyHistogram stripe = stripes_.get(i);
+            if (null != stripe)
+                stripe.reset();
+            errors_.set(i << PAD, 0);
+        }
+    }
+
+    /*
+     * Move the stripes to the totals
+     *
+     * @return the errors moved, the durations are moved to the histogram
+     *         specified
+     */
+    private synchronized long drainTo_(LatencyHistogram interval) {
+        long errors = 0;
+        for (int i = 0; i < STRIPES; ++i) {
+            LatencyHistogram stripe = stripes_.get(i);
+            if (null != stripe)
+                stripe.drainTo(interval);
+            if (0 != errors_.get(i << PAD))
+                errors += errors_.getAndSet(i << PAD, 0);
+        }
+        interval.addTo(total_);
+        totalErrors_ += errors;
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: errors=%s %s", action, errors(), histogram());
+    }
+
+    /**
+     * The metrics recorded so far, by action ("controller.method")
+     */
+    public static Map<String, ActionMetrics> actions() {
+        return Collections.unmodifiableMap(actions_);
+    }
+
+    /**
+     * The metrics of the action specified, null if it has not been invoked
+     */
+    public static ActionMetrics get(String action) {
+        return actions_.get(action);
+    }
+
+    /**
+     * One line per action, sorted by action
+     */
+    public static List<String> list() {
+        List<String> list = new ArrayList<String>();
+        for (ActionMetrics metrics : actions_.values())
+            list.add(metrics.toString());
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * Forget the metrics of every action
+     */
+    public static void resetAll() {
+        for (ActionMetrics metrics : actions_.values())
+            metrics.reset();
+    }
+
+    /**
+     * Move the durations recorded since the last summary to the totals
+     *
+     * @return one line per action invoked since the last summary, the
+     *         slowest in total first, null if none has been invoked
+     */
+    static synchronized String summary() {
+        List<Object[]> lines = new ArrayList<Object[]>();
+        for (ActionMetrics metrics : actions_.values()) {
+            LatencyHistogram interval = new LatencyHistogram();
+            long errors = metrics.drainTo_(interval);
+            if (interval.count() > 0)
+                lines.add(new Object[] { metrics.action, errors, interval });
+        }
+        if (lines.isEmpty())
+            return null;
+        Collections.sort(lines, new Comparator<Object[]>() {
+            public int compare(Object[] o1, Object[] o2) {
+                long t1 = ((LatencyHistogram) o1[2]).totalNanos(), t2 = ((LatencyHistogram) o2[2]).totalNanos();
+                return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (Object[] line : lines)
+            sb.append(String.format("%n  %s: errors=%s %s", line));
+        return sb.toString();
+    }
+
+    /**
+     * Record the duration of the actions, and log a summary of the actions
+     * invoked every interval seconds (never if 0)
+     */
+    static synchronized void start(int interval) {
+        stop();
+        enabled = true;
+        interval_ = interval;
+        if (interval <= 0)
+            return;
+        timer_ = new Timer("betterlogs-action-metrics", true);
+        timer_.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                log_();
+            }
+        }, interval * 1000L, interval * 1000L);
+    }
+
+    static synchronized void stop() {
+        enabled = false;
+        if (null != timer_) {
+            timer_.cancel();
+            timer_ = null;
+            log_();
+        }
+    }
+
+    private static void log_() {
+        try {
+            String summary = summary();
+            if (null != summary)
+                Logger.info("[BL] actions in the last %ss:%s", interval_, summary);
+        } catch (Throwable t) {
+            // never let the timer die
+        }
+    }
+
+    /**
+     * Action metrics summary for the plugin status
+     */
+    static String status() {
+        long count = 0, errors = 0;
+        for (ActionMetrics metrics : actions_.values()) {
+            count += metrics.count();
+            errors += metrics.errors();
+        }
+        return String.format("Action metrics: %s actions, %s requests, %s errors, summary every %s", actions_.size(),
+                count, errors, interval_ > 0 ? interval_ + "s" : "never");
+    }
+}
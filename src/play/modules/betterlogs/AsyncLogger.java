@@ -0,0 +1,290 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logging: request threads publish the log calls into a bounded
+ * ring buffer of preallocated {@link LogEvent}s, one background thread
+ * formats and writes them to the {@link LogBackend} in batches: the events
+ * drained are rendered, then written holding the lock of the backend once
+ * (see {@link LogBackend#batchLock(Object)}).
+ *
+ * <p>Publishing claims a slot with a CAS on the claim sequence and publishes
+ * it by storing the sequence in the slot, no lock is involved. The time,
+ * thread and call site are captured when publishing so the output is the same
+ * as in synchronous mode.
+ */
+public final class AsyncLogger implements Runnable {
+
+    /**
+     * What to do when publishing into a full (or almost full) buffer
+     */
+    public static enum Policy {
+        /**
+         * wait for a free slot
+         */
+        BLOCK,
+        /**
+         * drop TRACE to INFO events once the buffer is filled above the threshold,
+         * drop any event when the buffer is full. Never wait
+         */
+        DROP,
+        /**
+         * keep 1 TRACE to INFO event out of sampleRate once the buffer is filled
+         * above the threshold, wait for a free slot for the other events
+         */
+        SAMPLE
+    }
+
+    private static volatile AsyncLogger instance_;
+
+    // set while a thread captures an event in the slot it claimed: a toString() logging is written right away
+    private static final ThreadLocal<boolean[]> capturing_ = new ThreadLocal<boolean[]>() {
+        @Override
+        protected boolean[] initialValue() {
+            return new boolean[1];
+        }
+    };
+
+    private final LogEvent[] ring_;
+    private final int mask_;
+    // the sequence last published in each slot
+    private final AtomicLongArray published_;
+    // next sequence to claim / to consume
+    private final AtomicLong claimed_ = new AtomicLong();
+    private final AtomicLong consumed_ = new AtomicLong();
+    private final AtomicLong dropped_ = new AtomicLong();
+    private final AtomicLong sampled_ = new AtomicLong();
+    private volatile long written_;
+
+    private final Policy policy_;
+    private final int threshold_;
+    private final int sampleRate_;
+    private final int batchSize_;
+    private final Thread consumer_;
+    private volatile boolean running_ = true;
+    // the messages of the batch being written, rendered by the consumer
+    private final String[] messages_;
+
+    private AsyncLogger(int bufferSize, Policy policy, int thresholdPercent, int sampleRate, int batchSize) {
+        int size = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        ring_ = new LogEvent[size];
+        for (int i = 0; i < size; ++i)
+            ring_[i] = new LogEvent();
+        mask_ = size - 1;
+        published_ = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i)
+            published_.set(i, -1);
+        policy_ = policy;
+        threshold_ = Math.max(1, (int) ((long) size * thresholdPercent / 100));
+        sampleRate_ = Math.max(1, sampleRate);
+        batchSize_ = Math.max(1, batchSize);
+        messages_ = new String[batchSize_];
+        consumer_ = new Thread(this, "betterlogs-async");
+        consumer_.setDaemon(true);
+    }
+
+    /**
+     * Start the asynchronous logging, log calls are published to the buffer
+     * from now on
+     */
+    static synchronized void start(int bufferSize, Policy policy, int thresholdPercent, int sampleRate, int batchSize) {
+        stop();
+        AsyncLogger async = new AsyncLogger(bufferSize, policy, thresholdPercent, sampleRate, batchSize);
+        async.consumer_.start();
+        instance_ = async;
+    }
+
+    /**
+     * Stop the asynchronous logging after writing the events already published
+     */
+    static synchronized void stop() {
+        AsyncLogger async = instance_;
+        if (null == async)
+            return;
+        instance_ = null;
+        async.running_ = false;
+        LockSupport.unpark(async.consumer_);
+        try {
+            async.consumer_.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static AsyncLogger instance() {
+        return instance_;
+    }
+
+    /**
+     * Publish a log call, called on the calling thread
+     */
+    void publish(LogSite site, Throwable throwable, String pattern, Object[] args) {
+        boolean[] capturing = capturing_.get();
+        if (capturing[0] || Thread.currentThread() == consumer_) {
+            // logging while capturing or writing an event, e.g. from a toString(): do not wait for ourselves
+            LogEvent e = new LogEvent();
+            e.set(site, throwable, pattern, args);
+            e.site.write(e);
+            return;
+        }
+        int capacity = ring_.length;
+        boolean low = site.level < LogSite.WARN;
+        if (low && policy_ != Policy.BLOCK
+                && claimed_.get() - consumed_.get() >= threshold_) {
+            if (policy_ == Policy.DROP || 0 != sampled_.incrementAndGet() % sampleRate_) {
+                dropped_.incrementAndGet();
+                return;
+            }
+        }
+        long seq;
+        int spins = 0;
+        while (true) {
+            seq = claimed_.get();
+            if (seq - consumed_.get() >= capacity) {
+                if (policy_ == Policy.DROP || (low && policy_ == Policy.SAMPLE) || !running_) {
+                    dropped_.incrementAndGet();
+                    return;
+                }
+                backoff_(spins++);
+                continue;
+            }
+            if (claimed_.compareAndSet(seq, seq + 1))
+                break;
+        }
+        int slot = (int) seq & mask_;
+        capturing[0] = true;
+        try {
+            ring_[slot].set(site, throwable, pattern, args);
+        } finally {
+            capturing[0] = false;
+            published_.lazySet(slot, seq);
+        }
+    }
+
+    private static void backoff_(int spins) {
+        if (spins < 16)
+            return;
+        if (spins < 64)
+            Thread.yield();
+        else
+            LockSupport.parkNanos(spins < 1024 ? 10000L : 1000000L);
+    }
+
+    public void run() {
+        long next = consumed_.get();
+        int idle = 0;
+        while (running_ || next < claimed_.get()) {
+            int n = 0;
+            while (n < batchSize_ && published_.get((int) (next + n) & mask_) == next + n)
+                n++;
+            if (n > 0) {
+                write_(next, n);
+                next += n;
+                consumed_.lazySet(next);
+                written_ += n;
+                idle = 0;
+            } else if (running_) {
+                LockSupport.parkNanos(idle++ < 100 ? 10000L : 1000000L);
+            } else {
+                Thread.yield(); // a slot claimed but not yet published
+            }
+        }
+    }
+
+    /*
+     * Write the n events published from the sequence specified: rendered
+     * first, then written holding the lock of the backend once
+     */
+    private void write_(long start, int n) {
+        String[] messages = messages_;
+        try {
+            for (int i = 0; i < n; ++i) {
+                LogEvent e = ring_[(int) (start + i) & mask_];
+                try {
+                    messages[i] = e.site.prepare(e);
+                } catch (Throwable t) {
+                    e.clear(); // skipped, never let the consumer die
+                }
+            }
+            LogEvent first = ring_[(int) start & mask_];
+            Object lock = null == first.site ? null : LogBackend.current().batchLock(first.site.logger());
+            if (null == lock) {
+                writeAll_(start, n);
+            } else {
+                synchronized (lock) {
+                    writeAll_(start, n);
+                }
+            }
+        } catch (Throwable t) {
+            // never let the consumer die
+        } finally {
+            for (int i = 0; i < n; ++i) {
+                ring_[(int) (start + i) & mask_].clear();
+                messages[i] = null;
+            }
+        }
+    }
+
+    private void writeAll_(long start, int n) {
+        for (int i = 0; i < n; ++i) {
+            LogEvent e = ring_[(int) (start + i) & mask_];
+            if (null == e.site)
+                continue;
+            try {
+                e.site.write(e, messages_[i]);
+            } catch (Throwable t) {
+                // never let the consumer die
+            }
+        }
+    }
+
+    /**
+     * Number of log calls published to the buffer since the start
+     */
+    public static long queued() {
+        AsyncLogger async = instance_;
+        return null == async ? 0 : async.claimed_.get();
+    }
+
+    /**
+     * Number of log calls dropped since the start
+     */
+    public static long dropped() {
+        AsyncLogger async = instance_;
+        return null == async ? 0 : async.dropped_.get();
+    }
+
+    /**
+     * Number of log calls written since the start
+     */
+    public static long written() {
+        AsyncLogger async = instance_;
+        return null == async ? 0 : async.written_;
+    }
+
+    /**
+     * Number of log calls waiting in the buffer
+     */
+    public static long pending() {
+        AsyncLogger async = instance_;
+        return null == async ? 0 : async.claimed_.get() - async.consumed_.get();
+    }
+}
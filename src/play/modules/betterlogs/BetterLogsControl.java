@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import play.Logger;
+
+/**
+ * Runtime control of BetterLogs, exposed through JMX and the
+ * <code>/@betterlogs</code> path (see {@link BetterLogsPlugin#rawInvocation}):
+ * the trace probes, the trace themes, the latency histograms and the log
+ * level are changed without enhancing the classes again, the action metrics
+ * are read and reset.
+ */
+public class BetterLogsControl implements BetterLogsControlMBean {
+
+    static final String OBJECT_NAME = "play.modules.betterlogs:type=BetterLogs";
+
+    static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(new BetterLogsControl(), name);
+        } catch (Exception e) {
+            Logger.warn(e, "BetterLogs: cannot register the MBean %s", OBJECT_NAME);
+        }
+    }
+
+    static void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (Exception e) {
+            Logger.warn(e, "BetterLogs: cannot unregister the MBean %s", OBJECT_NAME);
+        }
+    }
+
+    public int enableTrace(String pattern) {
+        return TraceSwitches.enable(pattern);
+    }
+
+    public int disableTrace(String pattern) {
+        return TraceSwitches.disable(pattern);
+    }
+
+    public String[] getTraceSwitches() {
+        return toArray_(TraceSwitches.rules());
+    }
+
+    public String[] getTracedMethods() {
+        return toArray_(TraceSwitches.list(null));
+    }
+
+    public String getTraceThemes() {
+        return TraceThemes.activeNames();
+    }
+
+    public void setTraceThemes(String themes) {
+        TraceThemes.setIfChanged(null == themes ? "" : themes);
+    }
+
+    public boolean isHistogram() {
+        return TimeTracker.aggregate;
+    }
+
+    public void setHistogram(boolean histogram) {
+        TimeTracker.aggregate = histogram;
+    }
+
+    public String getLogLevel() {
+        return BetterLogsPlugin.getLogLevel();
+    }
+
+    public void setLogLevel(String level) {
+        BetterLogsPlugin.setLogLevel(level);
+    }
+
+    public void refreshLogLevels() {
+        BetterLogsPlugin.refreshLogLevels();
+    }
+
+    public String[] getActionMetrics() {
+        return toArray_(ActionMetrics.list());
+    }
+
+    public void resetActionMetrics() {
+        ActionMetrics.resetAll();
+    }
+
+    public String getHeavyHitters() {
+        String report = HeavyHitters.report(10, false);
+        return null == report ? "" : report.trim();
+    }
+
+    public String getStatus() {
+        return BetterLogsPlugin.status();
+    }
+
+    private static String[] toArray_(List<String> list) {
+        return list.toArray(new String[list.size()]);
+    }
+}
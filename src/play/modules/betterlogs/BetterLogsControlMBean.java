@@ -0,0 +1,71 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+/**
+ * JMX management interface of BetterLogs, registered as
+ * <code>play.modules.betterlogs:type=BetterLogs</code>. See
+ * {@link BetterLogsControl}
+ */
+public interface BetterLogsControlMBean {
+
+    /**
+     * Switch on the trace probes of a package, class, method, "theme:&lt;theme&gt;" or "*"
+     *
+     * @return the number of traced methods switched on
+     */
+    int enableTrace(String pattern);
+
+    /**
+     * Switch off the trace probes of a package, class, method, "theme:&lt;theme&gt;" or "*"
+     *
+     * @return the number of traced methods switched off
+     */
+    int disableTrace(String pattern);
+
+    String[] getTraceSwitches();
+
+    String[] getTracedMethods();
+
+    String getTraceThemes();
+
+    void setTraceThemes(String themes);
+
+    boolean isHistogram();
+
+    void setHistogram(boolean histogram);
+
+    String getLogLevel();
+
+    void setLogLevel(String level);
+
+    void refreshLogLevels();
+
+    /**
+     * The latency, requests and errors of each action, see {@link ActionMetrics}
+     */
+    String[] getActionMetrics();
+
+    void resetActionMetrics();
+
+    /**
+     * The noisiest log statements by lines and by characters since the last report, see
+     * {@link HeavyHitters}
+     */
+    String getHeavyHitters();
+
+    String getStatus();
+}
@@ -20,9 +20,24 @@ import javassist.ClassPool;
 import javassist.CtBehavior;
 import javassist.CtClass;
 import javassist.CtConstructor;
+import javassist.CtField;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.AccessFlag;
 import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.BadBytecode;
 import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.LocalVariableAttribute;
 import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.analysis.Analyzer;
+import javassist.bytecode.analysis.Frame;
 import javassist.bytecode.annotation.Annotation;
 import javassist.expr.ExprEditor;
 import javassist.expr.MethodCall;
@@ -31,8 +46,103 @@ import play.classloading.ApplicationClasses.ApplicationClass;
 import play.classloading.enhancers.Enhancer;
 import play.modules.betterlogs.BetterLogsPlugin.TraceMode;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class BetterLogsEnhancer extends Enhancer {
 
+    // enhancement statistics, see stats()
+    private static final AtomicLong classes_ = new AtomicLong();
+    private static final AtomicLong skipped_ = new AtomicLong();
+    private static final AtomicLong cached_ = new AtomicLong();
+    private static final AtomicLong untraced_ = new AtomicLong();
+    private static final AtomicLong nanos_ = new AtomicLong();
+
+    private static final int REFERENCES_LOGGER = 1;
+    private static final int REFERENCES_TRACE = 2;
+    private static final int INTERFACE = 4;
+    private static final byte[] LOGGER = ascii_("play/Logger");
+    private static final byte[] TRACE = ascii_("L" + Trace.class.getName().replace('.', '/') + ";");
+
+    private static byte[] ascii_(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; ++i)
+            b[i] = (byte) s.charAt(i);
+        return b;
+    }
+
+    /*
+     * Scan the constant pool of a class file for play.Logger and @Trace,
+     * without parsing the class: REFERENCES_LOGGER | REFERENCES_TRACE |
+     * INTERFACE, or -1 if the class file is not understood
+     */
+    static int scan(byte[] b) {
+        try {
+            int flags = 0;
+            int n = u16_(b, 8);
+            int i = 10;
+            for (int k = 1; k < n; ++k) {
+                switch (b[i]) {
+                case 1: // utf8
+                    int length = u16_(b, i + 1);
+                    if (equals_(b, i + 3, length, LOGGER))
+                        flags |= REFERENCES_LOGGER;
+                    else if (equals_(b, i + 3, length, TRACE))
+                        flags |= REFERENCES_TRACE;
+                    i += 3 + length;
+                    break;
+                case 3: case 4: // integer, float
+                case 9: case 10: case 11: case 12: // refs, name and type
+                case 17: case 18: // dynamic, invokedynamic
+                    i += 5;
+                    break;
+                case 5: case 6: // long, double: two entries
+                    i += 9;
+                    k++;
+                    break;
+                case 7: case 8: case 16: case 19: case 20: // class, string, method type, module, package
+                    i += 3;
+                    break;
+                case 15: // method handle
+                    i += 4;
+                    break;
+                default:
+                    return -1;
+                }
+            }
+            if (0 != (u16_(b, i) & AccessFlag.INTERFACE))
+                flags |= INTERFACE;
+            return flags;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static int u16_(byte[] b, int i) {
+        return ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+    }
+
+    private static boolean equals_(byte[] b, int offset, int length, byte[] s) {
+        if (length != s.length)
+            return false;
+        for (int i = 0; i < length; ++i) {
+            if (b[offset + i] != s[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Enhancement statistics since the start, e.g. "120 classes in 850ms:
+     * 80 skipped, 30 from cache, 200 methods not traced"
+     */
+    public static String stats() {
+        return String.format("%s classes in %sms: %s without log call nor trace skipped, %s from cache, "
+                + "%s trivial or excluded methods not traced", classes_.get(), nanos_.get() / 1000000,
+                skipped_.get(), cached_.get(), untraced_.get());
+    }
+
     private static boolean hasAnnotationType_(Class<?> clz, ClassPool cp,
             AnnotationsAttribute a1, AnnotationsAttribute a2) {
         Annotation[] anno1, anno2;
@@ -123,58 +233,142 @@ public class BetterLogsEnhancer extends Enhancer {
     }
 
     private static boolean traceEnhance_(CtClass ctClass) {
-        return BetterLogsPlugin.traceEnabled
+        return (BetterLogsPlugin.traceEnabled || BetterLogsPlugin.traceProbes)
                 && !hasAnnotation(ctClass, NoTrace.class);
     }
 
     private static boolean traceEnhance_(CtBehavior ctBehavior) {
-        return !ctBehavior.isEmpty()
-                && ((BetterLogsPlugin.traceMode == TraceMode.NOTRACE) ? 
-                        hasAnnotation(ctBehavior, Trace.class) : !hasAnnotation(ctBehavior, NoTrace.class));
+        if (ctBehavior.isEmpty())
+            return false;
+        if (BetterLogsPlugin.traceMode == TraceMode.NOTRACE)
+            return hasAnnotation(ctBehavior, Trace.class);
+        if (hasAnnotation(ctBehavior, NoTrace.class))
+            return false;
+        // in TRACE mode the methods not annotated are selected by the include/exclude rules
+        if (hasAnnotation(ctBehavior, Trace.class)
+                || TraceFilter.traced(ctBehavior.getDeclaringClass().getName(), ctBehavior))
+            return true;
+        untraced_.incrementAndGet();
+        return false;
     }
 
     private static void enhance_(CtClass cls, CtBehavior ctb,
-            String[] classTraceThemes, String traceMethod) throws Exception {
+            String[] classTraceThemes, String traceMethod, int id) throws Exception {
         if (!traceEnhance_(ctb))
             return;
-        // prefix
-        CtClass[] types = ctb.getParameterTypes();
-        int len = types.length;
-        StringBuilder sb = new StringBuilder("%sClass[] types = ");
-        if (len == 0) {
-            sb.append("new Class[0];");
+        // the themes are resolved once here instead of reflecting on each call
+        Object o = getAnnotation(ctb, Trace.class);
+        StringBuilder sb = new StringBuilder(quote_(cls.getName()))
+                .append(", ").append(quote_(ctb.getName()))
+                .append(", ").append(quote_(ctb.getSignature()))
+                .append(", ");
+        int sampleRate = 0;
+        boolean capture = BetterLogsPlugin.traceCapture;
+        if (null == o) {
+            sb.append("(String[]) null");
         } else {
-            sb.append("{");
-            for (int i = 0; i < len; ++i) {
+            sb.append("new String[]{");
+            String[] themes = ((Trace) o).value();
+            for (int i = 0; i < themes.length; ++i) {
                 if (i > 0)
                     sb.append(", ");
-                sb.append(types[i].getName()).append(".class");
+                sb.append(quote_(themes[i]));
             }
-            sb.append("};");
+            sb.append("}");
+            sampleRate = ((Trace) o).sampleRate();
+            capture = capture || ((Trace) o).capture();
         }
-        boolean isConstructor = ctb instanceof CtConstructor;
-        sb.append("java.lang.reflect.")
-                .append(isConstructor ? "Constructor" : "Method")
-                .append(" m = ")
-                .append(cls.getName())
-                .append(isConstructor ? ".class.getDeclaredConstructor("
-                        : ".class.getDeclaredMethod(\"")
-                .append(isConstructor ? "" : ctb.getName())
-                .append(isConstructor ? "" : "\", ")
-                .append("types);java.lang.annotation.Annotation a = m.getAnnotation(play.modules.betterlogs.Trace.class);"
-                        + "String[] sa = new String[]{\"\"};if (null != a) sa = ((play.modules.betterlogs.Trace)a).value(); "
-                        + "if (play.modules.betterlogs.BetterLogsPlugin.traceThemesMatch(sa) || ((sa.length == 1) && \"\".equals(sa[0]))){ play.Logger.")
-                .append(traceMethod)
-                .append("(\"[\" + play.modules.betterlogs.BetterLogsPlugin.traceThemesString(sa) + ");
-        // entry
-        String code = sb.toString() + "\"]%s%s ...\", sa); }";
+        sb.append(", ").append(sampleRate);
+        String site = addStaticField_(cls, TraceSite.class, "__bl_trace_" + id, sb.toString());
+        String code = "play.Logger." + traceMethod + "(\"[\" + " + site + ".label() + \"]%s ...\", new Object[0]);";
         Logger.trace("betterlogs::trace: entry/exit code: %s:", code);
-        ctb.insertBefore(String.format(code, "play.modules.betterlogs.TimeTracker.enter();", "enter", ""));
+        // entry, the sampling decision is kept until the exit. Probes switched off cost one branch
+        String on = "play.modules.betterlogs.TraceSwitches.on(" + site + ".id)";
+        if (capture) {
+            captureProbes_(ctb, site, on, traceMethod);
+            return;
+        }
+        ctb.insertBefore("{if (" + on + " && play.modules.betterlogs.TimeTracker.enter(" + site + ")) " + String.format(code, "enter") + "}");
         // exit
-        ctb.insertAfter(String.format(code, "", "exit", ": \" + play.modules.betterlogs.TimeTracker.exit() + \"ms"), true);
-        
+        ctb.insertAfter("{if (" + on + ") {long ns = play.modules.betterlogs.TimeTracker.exit(" + site + "); if (ns >= 0) "
+                + String.format(code, "exit: \" + play.modules.betterlogs.TimeTracker.millis(ns) + \"ms") + "}}", true);
+    }
+
+    /*
+     * Entry/exit probes logging the parameters and the return value. Each
+     * parameter is rendered by the ValueRenderer method of its static type,
+     * only once the entry is known to be logged. The return value is
+     * rendered on normal returns, kept in the TimeTracker stack and logged by
+     * the exit probe
+     */
+    private static void captureProbes_(CtBehavior ctb, String site, String on, String traceMethod)
+            throws Exception {
+        String signature = ctb.getSignature();
+        String[] names = parameterNames_(ctb);
+        StringBuilder args = new StringBuilder();
+        int i = 0;
+        for (int p = 1; signature.charAt(p) != ')'; ++i) {
+            char c = signature.charAt(p);
+            args.append(".name(").append(quote_(names[i])).append(").value(");
+            args.append('B' == c || 'S' == c ? "(int) $" : "$").append(i + 1).append(')');
+            p = nextType_(signature, p);
+        }
+        String log = "play.Logger." + traceMethod + "(\"[\" + " + site + ".label() + \"]";
+        ctb.insertBefore("{if (" + on + " && play.modules.betterlogs.TimeTracker.enter(" + site + ")) " + log
+                + (0 == i ? "enter ...\", new Object[0]);}" : "enter: %s ...\", new Object[]{play.modules.betterlogs.ValueRenderer.get()"
+                        + args + ".end()});}"));
+        boolean returns = !(ctb instanceof CtConstructor) && !signature.endsWith(")V");
+        if (returns) {
+            ctb.insertAfter("{if (" + on + " && play.modules.betterlogs.TimeTracker.logging(" + site + ")) "
+                    + "play.modules.betterlogs.TimeTracker.returned(" + site
+                    + ", play.modules.betterlogs.ValueRenderer.get().value($_).end());}");
+        }
+        ctb.insertAfter("{if (" + on + ") {long ns = play.modules.betterlogs.TimeTracker.exit(" + site + "); if (ns >= 0) "
+                + log + "exit: \" + play.modules.betterlogs.TimeTracker.millis(ns) + \"ms%s ...\", new Object[]{"
+                + "play.modules.betterlogs.TimeTracker.returned()});}}", true);
     }
-    
+
+    /*
+     * The position of the type following the one at p in a method descriptor
+     */
+    private static int nextType_(String descriptor, int p) {
+        while ('[' == descriptor.charAt(p))
+            p++;
+        if ('L' == descriptor.charAt(p))
+            p = descriptor.indexOf(';', p);
+        return p + 1;
+    }
+
+    /*
+     * The names of the parameters from the local variable table if compiled
+     * with debug information, arg0, arg1... otherwise
+     */
+    private static String[] parameterNames_(CtBehavior ctb) {
+        String signature = ctb.getSignature();
+        int count = Descriptor.numOfParameters(signature);
+        String[] names = new String[count];
+        CodeAttribute code = ctb.getMethodInfo2().getCodeAttribute();
+        LocalVariableAttribute table = null == code ? null
+                : (LocalVariableAttribute) code.getAttribute(LocalVariableAttribute.tag);
+        int slot = Modifier.isStatic(ctb.getModifiers()) ? 0 : 1;
+        for (int i = 0, p = 1; i < count; ++i) {
+            char c = signature.charAt(p);
+            if (null != table) {
+                for (int j = 0; j < table.tableLength(); ++j) {
+                    if (table.index(j) == slot && 0 == table.startPc(j)) {
+                        names[i] = table.variableName(j);
+                        break;
+                    }
+                }
+            }
+            if (null == names[i])
+                names[i] = "arg" + i;
+            slot += 'J' == c || 'D' == c ? 2 : 1;
+            p = nextType_(signature, p);
+        }
+        return names;
+    }
+
     public static Object getAnnotation(CtClass ctClass, Class<?> annType) throws ClassNotFoundException {
         ClassFile cf = ctClass.getClassFile2();
         AnnotationsAttribute ainfo = (AnnotationsAttribute)
@@ -193,13 +387,212 @@ public class BetterLogsEnhancer extends Enhancer {
         return getAnnotationType_(annType, ctBehavior.getDeclaringClass().getClassPool(), ainfo, ainfo2);
     }
 
+    private static final String SIG_LOG = "(Ljava/lang/String;[Ljava/lang/Object;)V";
+    private static final String SIG_LOG_THROWABLE = "(Ljava/lang/Throwable;Ljava/lang/String;[Ljava/lang/Object;)V";
+
+    /*
+     * The arguments to be passed to LogSite.log(...) for the play.Logger method
+     * with the signature specified, or null if there is no LogSite counterpart
+     */
+    private static String logArgs_(String signature) {
+        if (SIG_LOG.equals(signature))
+            return "$1, $2";
+        if (SIG_LOG_THROWABLE.equals(signature))
+            return "$1, $2, $3";
+        return null;
+    }
+
+    private static String quote_(String s) {
+        if (null == s)
+            return "null";
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String logSiteArgs_(String level, CtClass ctClass,
+            CtBehavior behavior, MethodCall m, ApplicationClass applicationClass) {
+        return new StringBuilder(quote_(level))
+                .append(", ").append(quote_(ctClass.getName())) // canonical name
+                .append(", ").append(quote_(ctClass.getSimpleName())) // simple name
+                .append(", ").append(quote_(ctClass.getPackageName())) // package
+                .append(", ").append(quote_(behavior.getName()))
+                .append(", ").append(quote_(behavior.getSignature()))
+                .append(", ").append(quote_(m.getFileName()))
+                .append(", ").append(quote_(applicationClass.javaFile.relativePath()))
+                .append(", ").append(m.getLineNumber())
+                .toString();
+    }
+
+    /*
+     * Add a synthetic static final field to the class, initialized with the
+     * arguments specified, and return its name
+     */
+    private static String addStaticField_(CtClass ctClass, Class<?> type, String name, String args)
+            throws CannotCompileException, NotFoundException {
+        CtField f = new CtField(ctClass.getClassPool().get(type.getName()), name, ctClass);
+        f.setModifiers(Modifier.PRIVATE | Modifier.STATIC | Modifier.FINAL);
+        FieldInfo fi = f.getFieldInfo2();
+        fi.setAccessFlags(fi.getAccessFlags() | AccessFlag.SYNTHETIC);
+        ctClass.addField(f, CtField.Initializer.byExpr("new " + type.getName() + "(" + args + ")"));
+        return name;
+    }
+
+    /*
+     * Insert a level check in front of each play.Logger call of the behavior,
+     * so that for a disabled level neither the arguments of the call are
+     * evaluated nor the call happens:
+     *
+     *     if (LogSite.isEnabled(level)) Logger.xxx(...);
+     *
+     * A log call is a statement on its own (play.Logger methods return void),
+     * thus its arguments are evaluated from the last position with an empty
+     * operand stack right before the call.
+     */
+    private static void guardLogCalls_(CtClass ctClass, CtBehavior behavior)
+            throws BadBytecode {
+        MethodInfo mi = behavior.getMethodInfo();
+        CodeAttribute ca = mi.getCodeAttribute();
+        if (null == ca)
+            return;
+        ConstPool cp = mi.getConstPool();
+        List<Integer> positions = new ArrayList<Integer>();
+        List<Integer> calls = new ArrayList<Integer>(); // index in positions
+        List<int[]> jumps = new ArrayList<int[]>(); // {from, to}
+        CodeIterator it = ca.iterator();
+        while (it.hasNext()) {
+            int pos = it.next();
+            positions.add(pos);
+            int op = it.byteAt(pos);
+            if (op == Opcode.INVOKESTATIC) {
+                int idx = it.u16bitAt(pos + 1);
+                if ("play.Logger".equals(cp.getMethodrefClassName(idx))
+                        && -1 != guardLevel_(cp.getMethodrefName(idx))
+                        && null != logArgs_(cp.getMethodrefType(idx)))
+                    calls.add(positions.size() - 1);
+            } else if ((op >= Opcode.IFEQ && op <= Opcode.JSR)
+                    || op == Opcode.IFNULL || op == Opcode.IFNONNULL) {
+                jumps.add(new int[] { pos, pos + it.s16bitAt(pos + 1) });
+            } else if (op == Opcode.GOTO_W || op == Opcode.JSR_W) {
+                jumps.add(new int[] { pos, pos + it.s32bitAt(pos + 1) });
+            } else if (op == Opcode.TABLESWITCH || op == Opcode.LOOKUPSWITCH) {
+                int p = (pos & ~3) + 4;
+                jumps.add(new int[] { pos, pos + it.s32bitAt(p) });
+                if (op == Opcode.TABLESWITCH) {
+                    int n = it.s32bitAt(p + 8) - it.s32bitAt(p + 4) + 1;
+                    for (int i = 0; i < n; ++i)
+                        jumps.add(new int[] { pos, pos + it.s32bitAt(p + 12 + i * 4) });
+                } else {
+                    int n = it.s32bitAt(p + 4);
+                    for (int i = 0; i < n; ++i)
+                        jumps.add(new int[] { pos, pos + it.s32bitAt(p + 12 + i * 8) });
+                }
+            }
+        }
+        if (calls.isEmpty())
+            return;
+        ExceptionTable et = ca.getExceptionTable();
+        for (int i = 0; i < et.size(); ++i)
+            jumps.add(new int[] { -1, et.handlerPc(i) });
+
+        Frame[] frames = new Analyzer().analyze(ctClass, mi);
+        CodeAttribute backup = (CodeAttribute) ca.copy(cp, null);
+        int methodref = cp.addMethodrefInfo(cp.addClassInfo(LogSite.class.getName()), "isEnabled", "(I)Z");
+        boolean changed = false;
+        // from the end so that the positions found are not shifted by the insertions
+        for (int c = calls.size() - 1; c >= 0; --c) {
+            int k = calls.get(c), call = positions.get(k);
+            if (null == frames[call])
+                continue; // dead code
+            int start = -1;
+            for (int j = k - 1; j >= 0; --j) {
+                int pos = positions.get(j);
+                if (null == frames[pos])
+                    break;
+                if (frames[pos].getTopIndex() == -1) {
+                    start = pos;
+                    break;
+                }
+            }
+            if (-1 == start || !statement_(start, call, jumps))
+                continue;
+            int idx = it.u16bitAt(call + 1);
+            byte[] guard = { (byte) (Opcode.ICONST_0 + guardLevel_(cp.getMethodrefName(idx))),
+                    (byte) Opcode.INVOKESTATIC, (byte) (methodref >> 8), (byte) methodref,
+                    (byte) Opcode.IFEQ, 0, 0 };
+            CodeIterator.Gap gap = it.insertGapAt(start, guard.length, false);
+            int ifeq = gap.position + 4, end = call + gap.length + 3;
+            it.write(guard, gap.position);
+            it.write16bit(end - ifeq, ifeq + 1);
+            changed = true;
+        }
+        if (changed) {
+            ca.setMaxStack(ca.computeMaxStack());
+            try {
+                mi.rebuildStackMapIf6(ctClass.getClassPool(), ctClass.getClassFile2());
+            } catch (BadBytecode e) {
+                mi.setCodeAttribute(backup);
+                throw e;
+            }
+        }
+    }
+
+    /*
+     * Whether the code between start and call is only reached through start
+     */
+    private static boolean statement_(int start, int call, List<int[]> jumps) {
+        for (int[] jump : jumps) {
+            int from = jump[0], to = jump[1];
+            if (to > start && to <= call && (from < start || from > call))
+                return false;
+        }
+        return true;
+    }
+
+    private static int guardLevel_(String method) {
+        try {
+            return LogSite.toLevel(method);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
     @Override
     public void enhanceThisClass(final ApplicationClass applicationClass)
             throws Exception {
         Logger.trace("BetterLogsEnhancer.enhanceThisClass: enter");
-        final CtClass ctClass = makeClass(applicationClass);
-        if (ctClass.getName().matches(".*Plugin.*"))
+        long start = System.nanoTime();
+        try {
+            enhance_(applicationClass);
+        } finally {
+            classes_.incrementAndGet();
+            nanos_.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void enhance_(final ApplicationClass applicationClass) throws Exception {
+        if (applicationClass.name.contains("Plugin"))
             return;
+        // most classes have neither log call nor trace: leave them before parsing them
+        int flags = scan(applicationClass.enhancedByteCode);
+        if (-1 != flags) {
+            boolean trace = (BetterLogsPlugin.traceEnabled || BetterLogsPlugin.traceProbes)
+                    && ((BetterLogsPlugin.traceMode == TraceMode.TRACE && !TraceFilter.excludes(applicationClass.name))
+                            || 0 != (flags & REFERENCES_TRACE));
+            if (0 != (flags & INTERFACE) || (!trace && 0 == (flags & REFERENCES_LOGGER))) {
+                skipped_.incrementAndGet();
+                return;
+            }
+        }
+        byte[] key = null;
+        if (EnhancerCache.enabled()) {
+            key = EnhancerCache.key(applicationClass.enhancedByteCode, applicationClass.javaFile.relativePath());
+            byte[] cached = EnhancerCache.get(applicationClass.name, key);
+            if (null != cached) {
+                applicationClass.enhancedByteCode = cached;
+                cached_.incrementAndGet();
+                return;
+            }
+        }
+        final CtClass ctClass = makeClass(applicationClass);
         if (ctClass.isInterface())
             return;
 
@@ -212,44 +605,45 @@ public class BetterLogsEnhancer extends Enhancer {
             if (null != o)
                 classTraceThemes = ((Trace) o).value();
             String traceMethod = BetterLogsPlugin.traceMethod;
+            int traceCount = 0;
             for (final CtBehavior behavior : ctClass.getDeclaredBehaviors()) {
-                enhance_(ctClass, behavior, classTraceThemes, traceMethod);
+                enhance_(ctClass, behavior, classTraceThemes, traceMethod, traceCount++);
             }
             ctClass.defrost();
         }
+        final int[] siteCount = {0};
         for (final CtBehavior behavior : ctClass.getDeclaredBehaviors()) {
+            try {
+                guardLogCalls_(ctClass, behavior);
+            } catch (BadBytecode e) {
+                Logger.warn(e, "BetterLogs: cannot guard log calls in %s.%s%s", ctClass.getName(),
+                        behavior.getName(), behavior.getSignature());
+            }
             behavior.instrument(new ExprEditor() {
                 @Override
                 public void edit(MethodCall m) throws CannotCompileException {
                     try {
                         if ("play.Logger".equals(m.getClassName())) {
                             String name = m.getMethodName();
-                            // String level, String clazz, String
-                            // clazzSimpleName, String packageName, String
-                            // method, String signature, String fileName, String
-                            // relativeFileName, int line, Object[] args
                             if ("trace".equals(name) || "debug".equals(name)
                                     || "info".equals(name)
                                     || "warn".equals(name)
                                     || "error".equals(name)
                                     || "fatal".equals(name)) {
-                                String code = String
-                                        .format("{play.modules.betterlogs.BetterLogsPlugin.log(\"%s\", \"%s\", \"%s\", \"%s\", \"%s\", \"%s\", \"%s\", \"%s\", %s, %s);}",
-                                                name,
-                                                ctClass.getName(), // canonical
-                                                                   // name
-                                                ctClass.getSimpleName(), // simple
-                                                                         // name
-                                                ctClass.getPackageName(), // package
-                                                behavior.getName(), behavior
-                                                        .getSignature(), m
-                                                        .getFileName(),
-                                                applicationClass.javaFile
-                                                        .relativePath(), m
-                                                        .getLineNumber(),
-                                                "$args" // original args
-                                        );
-                                m.replace(code);
+                                String args = logArgs_(m.getSignature());
+                                if (null == args) {
+                                    // String level, String clazz, String
+                                    // clazzSimpleName, String packageName, String
+                                    // method, String signature, String fileName, String
+                                    // relativeFileName, int line, Object[] args
+                                    m.replace(String.format(
+                                            "{play.modules.betterlogs.BetterLogsPlugin.log(%s, $args);}",
+                                            logSiteArgs_(name, ctClass, behavior, m, applicationClass)));
+                                    return;
+                                }
+                                String site = addStaticField_(ctClass, LogSite.class, "__bl_log_" + siteCount[0]++,
+                                        logSiteArgs_(name, ctClass, behavior, m, applicationClass));
+                                m.replace(String.format("{%s.log(%s);}", site, args));
                             }
                         }
                     } catch (Exception e) {
@@ -261,5 +655,7 @@ public class BetterLogsEnhancer extends Enhancer {
 
         applicationClass.enhancedByteCode = ctClass.toBytecode();
         ctClass.defrost();
+        if (null != key)
+            EnhancerCache.put(applicationClass.name, key, applicationClass.enhancedByteCode);
     }
 }
@@ -21,13 +21,17 @@ import play.Play;
 import play.PlayPlugin;
 import play.classloading.ApplicationClasses.ApplicationClass;
 import play.classloading.enhancers.Enhancer;
+import play.libs.Crypto;
+import play.mvc.Http.Header;
 import play.mvc.Http.Request;
+import play.mvc.Http.Response;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -61,6 +65,96 @@ public class BetterLogsPlugin extends PlayPlugin {
      * config whether to log action invocation time
      */
     public static final String CONF_LOG_ACTION_INVOCATION_TIME = "betterlogs.trace.actionInvocation.time";
+    /**
+     * config whether to record the latency, requests and errors of each action, see
+     * {@link ActionMetrics}. Default to false. When enabled, {@link #CONF_LOG_ACTION_INVOCATION}
+     * defaults to false
+     */
+    public static final String CONF_ACTION_METRICS = "betterlogs.metrics.actions";
+    /**
+     * config the interval in seconds the summary of the action metrics is logged, 0 for never.
+     * Default to 60
+     */
+    public static final String CONF_ACTION_METRICS_INTERVAL = "betterlogs.metrics.interval";
+    /**
+     * config whether to count the lines and characters written by each log statement, see
+     * {@link PrometheusExporter}. Default to false
+     */
+    public static final String CONF_METRICS_LOGS = "betterlogs.metrics.logs";
+    /**
+     * config the port of the HTTP server serving the metrics at /metrics, 0 for none (they
+     * are still served by Play at /@betterlogs/metrics). Default to 0
+     */
+    public static final String CONF_METRICS_PORT = "betterlogs.metrics.port";
+    /**
+     * config the address the metrics HTTP server listens to. Default to "127.0.0.1"
+     */
+    public static final String CONF_METRICS_ADDRESS = "betterlogs.metrics.address";
+    /**
+     * config whether to find the log statements writing the most lines and characters, see
+     * {@link HeavyHitters}. Default to false
+     */
+    public static final String CONF_HEAVY_HITTERS = "betterlogs.heavyHitters";
+    /**
+     * config the number of log statements counted per thread. Default to 64
+     */
+    public static final String CONF_HEAVY_HITTERS_CAPACITY = "betterlogs.heavyHitters.capacity";
+    /**
+     * config the interval in seconds the report of the noisiest log statements is logged, 0 for
+     * never. Default to 300
+     */
+    public static final String CONF_HEAVY_HITTERS_INTERVAL = "betterlogs.heavyHitters.interval";
+    /**
+     * config the number of log statements in the report. Default to 10
+     */
+    public static final String CONF_HEAVY_HITTERS_TOP = "betterlogs.heavyHitters.top";
+    /**
+     * config the window in milliseconds a message repeated by a log statement is suppressed
+     * after its first occurrence, see {@link RepeatFilter}. 0 to disable. Default to 0
+     */
+    public static final String CONF_DEDUP_WINDOW = "betterlogs.dedup.window";
+    /**
+     * config the lowest level of the messages suppressed when repeated. Default to "TRACE"
+     */
+    public static final String CONF_DEDUP_LEVEL = "betterlogs.dedup.level";
+    /**
+     * config whether to write a stack trace in full the first time only, and a reference to it
+     * afterwards, see {@link StackFingerprints}. Default to false
+     */
+    public static final String CONF_STACK_FINGERPRINT = "betterlogs.stackTrace.fingerprint";
+    /**
+     * config the number of frames of a throwable and of each of its causes in its fingerprint.
+     * Default to 16
+     */
+    public static final String CONF_STACK_FINGERPRINT_DEPTH = "betterlogs.stackTrace.fingerprint.depth";
+    /**
+     * config the number of fingerprints remembered, the least recently logged are forgotten first.
+     * Default to 1024
+     */
+    public static final String CONF_STACK_FINGERPRINT_CACHE_SIZE = "betterlogs.stackTrace.fingerprint.cacheSize";
+    /**
+     * config whether the trace probes of every traced method log its parameters and return
+     * value, see {@link Trace#capture()}. Default to false
+     */
+    public static final String CONF_TRACE_CAPTURE = "betterlogs.trace.capture";
+    /**
+     * config the maximum characters rendered for the parameters, or the return value, of a
+     * traced call. Default to 256
+     */
+    public static final String CONF_TRACE_CAPTURE_MAX_CHARS = "betterlogs.trace.capture.maxChars";
+    /**
+     * config the maximum elements rendered per array, collection or map. Default to 8
+     */
+    public static final String CONF_TRACE_CAPTURE_MAX_ELEMENTS = "betterlogs.trace.capture.maxElements";
+    /**
+     * config the maximum nesting of arrays, collections and maps rendered. Default to 2
+     */
+    public static final String CONF_TRACE_CAPTURE_MAX_DEPTH = "betterlogs.trace.capture.maxDepth";
+    /**
+     * config whether objects are rendered with toString(), instead of their class and identity
+     * hash. Default to false
+     */
+    public static final String CONF_TRACE_CAPTURE_TO_STRING = "betterlogs.trace.capture.toString";
     /**
      * config whether set trace themes (configured with {@link CONF_TRACE_THEME}) each time before
      * actions been invoked. Default to false
@@ -72,6 +166,178 @@ public class BetterLogsPlugin extends PlayPlugin {
      * - TRACE: trace enhancement to all class/method/constructor with no @NoTrace annotation
      */
     public static final String CONF_TRACE_MODE = "betterlogs.trace.mode";
+    /**
+     * config the methods traced in TRACE mode: globs matched against "package.Class.method" or
+     * any prefix of it, separated by ",", e.g. "models, controllers.*.index". Default to all
+     * methods. See {@link TraceFilter}
+     */
+    public static final String CONF_TRACE_INCLUDE = "betterlogs.trace.include";
+    /**
+     * config the methods not traced in TRACE mode, see {@link #CONF_TRACE_INCLUDE}. Default to none
+     */
+    public static final String CONF_TRACE_EXCLUDE = "betterlogs.trace.exclude";
+    /**
+     * config whether trivial methods (field getters and setters, short methods without call nor
+     * loop) are left out in TRACE mode. Default to true
+     */
+    public static final String CONF_TRACE_SKIP_TRIVIAL = "betterlogs.trace.skipTrivial";
+    /**
+     * config the bytecode size up to which a method without call nor loop is trivial. Default to 32
+     */
+    public static final String CONF_TRACE_SKIP_TRIVIAL_MAX_SIZE = "betterlogs.trace.skipTrivial.maxSize";
+    /**
+     * config whether the probes of the traced methods called often and returning fast are
+     * switched off for good at runtime, see {@link TracePruner}. Default to false
+     */
+    public static final String CONF_TRACE_PRUNE = "betterlogs.trace.prune";
+    /**
+     * config the seconds between two checks of the traced methods to prune. Default to 10
+     */
+    public static final String CONF_TRACE_PRUNE_INTERVAL = "betterlogs.trace.prune.interval";
+    /**
+     * config the calls per second from which a traced method could be pruned. Default to 10000
+     */
+    public static final String CONF_TRACE_PRUNE_MIN_RATE = "betterlogs.trace.prune.minRate";
+    /**
+     * config the average duration in microseconds below which a traced method called often
+     * enough is pruned. Default to 5
+     */
+    public static final String CONF_TRACE_PRUNE_THRESHOLD = "betterlogs.trace.prune.threshold";
+    /**
+     * config whether to record the duration of traced methods in latency histograms,
+     * see {@link TimeTracker#histograms()}. Methods are traced even if the trace level
+     * is disabled. Default to false
+     */
+    public static final String CONF_TRACE_HISTOGRAM = "betterlogs.trace.histogram";
+    /**
+     * config whether to inject the trace probes even if tracing is disabled at startup, so that it
+     * could be switched on at runtime, see {@link TraceSwitches}. Default to false
+     */
+    public static final String CONF_TRACE_PROBES = "betterlogs.trace.probes";
+    /**
+     * config the duration in milliseconds above which a traced call is slow. If positive, the
+     * entry/exit of traced calls are buffered per thread and logged only when the root call
+     * exits and a call of its tree was slow; sampling does not apply. Default to 0 (log them all)
+     */
+    public static final String CONF_TRACE_SLOW_THRESHOLD = "betterlogs.trace.slow.threshold";
+    /**
+     * config the number of entry/exit buffered per thread when {@link #CONF_TRACE_SLOW_THRESHOLD}
+     * is set, the ones beyond are counted only. Default to 256
+     */
+    public static final String CONF_TRACE_SLOW_BUFFER_SIZE = "betterlogs.trace.slow.bufferSize";
+    /**
+     * config whether to log the call tree of the traced methods of each action, with the calls,
+     * total and self time of each method, once the action is invoked: "false", "true" or
+     * "collapsed" (the collapsed stack format of flame graph tools). Methods are traced even
+     * if the trace level is disabled. Default to false
+     */
+    public static final String CONF_TRACE_PROFILE = "betterlogs.trace.profile";
+    /**
+     * config the maximum number of nodes of the call tree of an action, the calls beyond are
+     * counted only. Default to 1024
+     */
+    public static final String CONF_TRACE_PROFILE_MAX_NODES = "betterlogs.trace.profile.maxNodes";
+    /**
+     * config the default sampling rate of traced methods: the entry/exit of 1 call out of rate
+     * is logged. Default to 1
+     */
+    public static final String CONF_TRACE_SAMPLING_RATE = "betterlogs.trace.sampling.rate";
+    /**
+     * prefix of the config of the sampling rate of the methods with a given trace theme,
+     * e.g. "betterlogs.trace.sampling.theme.order=10"
+     */
+    public static final String CONF_TRACE_SAMPLING_THEME = "betterlogs.trace.sampling.theme.";
+    /**
+     * prefix of the config of the sampling rate of the methods of a package, a class or a method,
+     * e.g. "betterlogs.trace.sampling.method.controllers.Application.index=10"
+     */
+    public static final String CONF_TRACE_SAMPLING_METHOD = "betterlogs.trace.sampling.method.";
+    /**
+     * config the maximum number of entry/exit lines logged per second, the hottest methods are
+     * sampled down first to fit. Default to 0 (no budget)
+     */
+    public static final String CONF_TRACE_SAMPLING_BUDGET = "betterlogs.trace.sampling.budget";
+    /**
+     * config whether log calls are written asynchronously by a background thread. Default to false
+     */
+    public static final String CONF_ASYNC = "betterlogs.async.enabled";
+    /**
+     * config the number of log calls the asynchronous buffer could hold, rounded up to a power of 2.
+     * Default to 8192
+     */
+    public static final String CONF_ASYNC_BUFFER_SIZE = "betterlogs.async.bufferSize";
+    /**
+     * config what to do when the asynchronous buffer is full, see {@link AsyncLogger.Policy}.
+     * Default to "BLOCK"
+     */
+    public static final String CONF_ASYNC_POLICY = "betterlogs.async.policy";
+    /**
+     * config the percentage of the asynchronous buffer above which TRACE to INFO log calls are
+     * dropped or sampled. Default to 80
+     */
+    public static final String CONF_ASYNC_THRESHOLD = "betterlogs.async.threshold";
+    /**
+     * config the sampling rate of the SAMPLE policy: 1 log call out of sampleRate is kept.
+     * Default to 10
+     */
+    public static final String CONF_ASYNC_SAMPLE_RATE = "betterlogs.async.sampleRate";
+    /**
+     * config the maximum number of log calls written by the background thread in a batch.
+     * Default to 256
+     */
+    public static final String CONF_ASYNC_BATCH_SIZE = "betterlogs.async.batchSize";
+    /**
+     * config whether the log calls of an action are buffered per thread and written in one batch
+     * at the end of the action, see {@link RequestBuffer}. Ignored if the log calls are written
+     * asynchronously. Default to false
+     */
+    public static final String CONF_REQUEST_BUFFER = "betterlogs.requestBuffer";
+    /**
+     * config the number of log calls buffered before the batch is written. Default to 256
+     */
+    public static final String CONF_REQUEST_BUFFER_SIZE = "betterlogs.requestBuffer.size";
+    /**
+     * config the level of the log calls written right away with the ones buffered before, e.g.
+     * "WARN". Default to none
+     */
+    public static final String CONF_REQUEST_BUFFER_FLUSH_LEVEL = "betterlogs.requestBuffer.flushLevel";
+    /**
+     * config where log calls are written, see {@link LogBackend}: "play", "log4j", "jul", "binary", "mmap", "noop"
+     * or the class name of a LogBackend. Default to "play"
+     */
+    public static final String CONF_BACKEND = "betterlogs.backend";
+    /**
+     * config whether to cache the enhanced bytecode in tmp/betterlogs, see {@link EnhancerCache}.
+     * Default to true
+     */
+    public static final String CONF_ENHANCE_CACHE = "betterlogs.enhance.cache";
+    /**
+     * config the file written by the binary backend, relative to the application. Default to
+     * "logs/betterlogs.bin"
+     */
+    public static final String CONF_BINARY_FILE = "betterlogs.binary.file";
+    /**
+     * config the size in bytes of the buffer of the binary backend. Default to 65536
+     */
+    public static final String CONF_BINARY_BUFFER_SIZE = "betterlogs.binary.bufferSize";
+    /**
+     * config the file written by the mmap backend, relative to the application: the segments are
+     * the file name followed by ".1", ".2"... Default to "logs/betterlogs.log"
+     */
+    public static final String CONF_MMAP_FILE = "betterlogs.mmap.file";
+    /**
+     * config the size in bytes of each segment of the mmap backend. Default to 67108864 (64MB)
+     */
+    public static final String CONF_MMAP_SEGMENT_SIZE = "betterlogs.mmap.segmentSize";
+    /**
+     * config the date format of the lines written by the mmap backend. Default to "HH:mm:ss,SSS"
+     */
+    public static final String CONF_MMAP_DATE_FORMAT = "betterlogs.mmap.dateFormat";
+    /**
+     * config the interval in milliseconds the mmap backend forces the current segment to disk,
+     * 0 to leave it to the operating system. Default to 1000
+     */
+    public static final String CONF_MMAP_FORCE_INTERVAL = "betterlogs.mmap.forceInterval";
 
     final static Pattern PREFIX_PATTERN = Pattern
             .compile("%file|%line|%thread|%class|%method|%relativeFile|%simpleClass|%package|%signature");
@@ -84,12 +350,22 @@ public class BetterLogsPlugin extends PlayPlugin {
 
     private static Enhancer e_ = new BetterLogsEnhancer();
     static boolean traceEnabled = false;
+    static boolean traceProbes = false;
+    static boolean traceCapture = false;
+    static boolean traceProfile = false;
+    static boolean traceProfileCollapsed = false;
     static boolean setTraceThemes = false;
     static boolean logActionInvocation = false;
     static boolean logActionInvocationTime = false;
+    static boolean actionMetrics = false;
+    static boolean heavyHitters = false;
+    static long dedupWindow = 0;
+    static int dedupLevel = LogSite.TRACE;
     static String traceLevel = "TRACE";
     static String traceMethod = "trace";
     static TraceMode traceMode = TraceMode.NOTRACE;
+    static boolean async = false;
+    static AsyncLogger.Policy asyncPolicy = AsyncLogger.Policy.BLOCK;
     static enum TraceMode {TRACE, NOTRACE};
 
     @Override
@@ -103,6 +379,7 @@ public class BetterLogsPlugin extends PlayPlugin {
     private static boolean configured_ = false;
     @Override
     public void onConfigurationRead() {
+        LogSite.refreshLevels();
         if (configured_) return;
         disabled = "true".equals(Play.configuration
                 .getProperty(CONF_DISABLED));
@@ -124,7 +401,7 @@ public class BetterLogsPlugin extends PlayPlugin {
                                 "%%")).append("%s");
                 lastEnd = matcher.end();
             } while (matcher.find());
-            sb.append(prefix.substring(lastEnd));
+            sb.append(prefix.substring(lastEnd).replace("%", "%%"));
         }
         String trailingSpaces = Play.configuration.getProperty(
                 CONF_PREFIX_TRAILINGSPACES, "1ws");
@@ -143,10 +420,28 @@ public class BetterLogsPlugin extends PlayPlugin {
         // enable trace?
         traceLevel = Play.configuration.getProperty(CONF_TRACE_LEVEL,
                 "TRACE");
-        traceEnabled = logEnabled(traceLevel);
+        TimeTracker.aggregate = Boolean.parseBoolean(Play.configuration.getProperty(CONF_TRACE_HISTOGRAM, "false"));
+        String profile = Play.configuration.getProperty(CONF_TRACE_PROFILE, "false").trim();
+        traceProfileCollapsed = "collapsed".equalsIgnoreCase(profile);
+        traceProfile = traceProfileCollapsed || Boolean.parseBoolean(profile);
+        TimeTracker.profileMaxNodes = intConf(CONF_TRACE_PROFILE_MAX_NODES, 1024);
+        traceEnabled = logEnabled(traceLevel) || TimeTracker.aggregate || traceProfile;
+        TimeTracker.slowNanos = intConf(CONF_TRACE_SLOW_THRESHOLD, 0) * 1000000L;
+        TimeTracker.slowBufferSize = intConf(CONF_TRACE_SLOW_BUFFER_SIZE, 256);
+        traceProbes = Boolean.parseBoolean(Play.configuration.getProperty(CONF_TRACE_PROBES, "false"));
+        traceCapture = Boolean.parseBoolean(Play.configuration.getProperty(CONF_TRACE_CAPTURE, "false"));
+        ValueRenderer.configure(intConf(CONF_TRACE_CAPTURE_MAX_CHARS, 256), intConf(CONF_TRACE_CAPTURE_MAX_ELEMENTS, 8),
+                intConf(CONF_TRACE_CAPTURE_MAX_DEPTH, 2),
+                Boolean.parseBoolean(Play.configuration.getProperty(CONF_TRACE_CAPTURE_TO_STRING, "false")));
+        TraceSwitches.reset(traceEnabled);
+        TraceFilter.configure(Play.configuration);
+        TracePruner.configure(Boolean.parseBoolean(Play.configuration.getProperty(CONF_TRACE_PRUNE, "false")),
+                intConf(CONF_TRACE_PRUNE_INTERVAL, 10), intConf(CONF_TRACE_PRUNE_MIN_RATE, 10000),
+                intConf(CONF_TRACE_PRUNE_THRESHOLD, 5) * 1000L);
         traceMethod = toLogMethod(traceLevel);
+        TraceSampler.configure(Play.configuration, LogSite.toLevel(traceMethod));
 
-        if (traceEnabled) {
+        if (traceEnabled || traceProbes) {
             String s = Play.configuration.getProperty(CONF_TRACE_MODE, "NOTRACE");
             try {
                 traceMode = TraceMode.valueOf(TraceMode.class, s);
@@ -157,51 +452,139 @@ public class BetterLogsPlugin extends PlayPlugin {
             setTraceThemes = Boolean.valueOf(s);
         }
 
+        backend_();
+
+        async = Boolean.parseBoolean(Play.configuration.getProperty(CONF_ASYNC, "false"));
+        if (async) {
+            String s = Play.configuration.getProperty(CONF_ASYNC_POLICY, "BLOCK");
+            try {
+                asyncPolicy = AsyncLogger.Policy.valueOf(s.toUpperCase());
+            } catch (Exception e) {
+                Logger.warn("invalid async policy found in config: %s. BetterLogs async policy set to BLOCK", s);
+                asyncPolicy = AsyncLogger.Policy.BLOCK;
+            }
+        }
+
+        RequestBuffer.enabled = Boolean.parseBoolean(Play.configuration.getProperty(CONF_REQUEST_BUFFER, "false"));
+        if (RequestBuffer.enabled && async) {
+            Logger.warn("%s is ignored, the log calls are written asynchronously", CONF_REQUEST_BUFFER);
+            RequestBuffer.enabled = false;
+        }
+        RequestBuffer.capacity = Math.max(1, intConf(CONF_REQUEST_BUFFER_SIZE, 256));
+        String flushLevel = Play.configuration.getProperty(CONF_REQUEST_BUFFER_FLUSH_LEVEL, "").trim();
+        try {
+            RequestBuffer.flushLevel = "".equals(flushLevel) ? LogSite.FATAL + 1 : LogSite.toLevel(flushLevel.toLowerCase());
+        } catch (IllegalArgumentException e) {
+            Logger.warn("invalid %s found in config: %s. Set to none", CONF_REQUEST_BUFFER_FLUSH_LEVEL, flushLevel);
+            RequestBuffer.flushLevel = LogSite.FATAL + 1;
+        }
+
+        EnhancerCache.configure(Play.configuration,
+                Boolean.parseBoolean(Play.configuration.getProperty(CONF_ENHANCE_CACHE, "true"))
+                        && !Play.readOnlyTmp ? Play.tmpDir : null);
+
         logActionInvocationTime = Boolean.parseBoolean(Play.configuration.getProperty(CONF_LOG_ACTION_INVOCATION_TIME, Play.mode.isDev() ? "true":"false"));
-        logActionInvocation = Boolean.parseBoolean(Play.configuration.getProperty(CONF_LOG_ACTION_INVOCATION, Play.mode.isDev() ? "true":"false"));
+        LogSite.counting = Boolean.parseBoolean(Play.configuration.getProperty(CONF_METRICS_LOGS, "false"));
+        dedupWindow = intConf(CONF_DEDUP_WINDOW, 0);
+        String dedupLevelName = Play.configuration.getProperty(CONF_DEDUP_LEVEL, "TRACE").trim();
+        try {
+            dedupLevel = LogSite.toLevel(dedupLevelName.toLowerCase());
+        } catch (IllegalArgumentException e) {
+            Logger.warn("invalid %s found in config: %s. Set to TRACE", CONF_DEDUP_LEVEL, dedupLevelName);
+            dedupLevel = LogSite.TRACE;
+        }
+        StackFingerprints.configure(Boolean.parseBoolean(Play.configuration.getProperty(CONF_STACK_FINGERPRINT, "false")),
+                intConf(CONF_STACK_FINGERPRINT_DEPTH, 16), intConf(CONF_STACK_FINGERPRINT_CACHE_SIZE, 1024));
+        heavyHitters = Boolean.parseBoolean(Play.configuration.getProperty(CONF_HEAVY_HITTERS, "false"));
+        actionMetrics = Boolean.parseBoolean(Play.configuration.getProperty(CONF_ACTION_METRICS, "false"));
+        logActionInvocation = Boolean.parseBoolean(Play.configuration.getProperty(CONF_LOG_ACTION_INVOCATION, Play.mode.isDev() && !actionMetrics ? "true":"false"));
 
         configured_ = true;
     }
 
-    //private static final ThreadLocal<Long> perf_ = new ThreadLocal<Long>();
-    private static final String KEY = "__BL_COUNTER__";
+    // the backend has been closed when the application stopped, see onApplicationStop()
+    private static boolean backendClosed_ = false;
+
+    private static void backend_() {
+        String backend = Play.configuration.getProperty(CONF_BACKEND, "play").trim();
+        try {
+            LogBackend.set(LogBackend.forName(backend));
+        } catch (Exception e) {
+            Logger.warn(e, "invalid backend found in config: %s. BetterLogs backend set to play", backend);
+            LogBackend.set(new PlayLogBackend());
+        }
+    }
+
     @Override
     public void beforeActionInvocation(Method actionMethod) {
+        if (RequestBuffer.enabled)
+            RequestBuffer.begin();
         if (logActionInvocation) {
             Logger.info("");
             Logger.info("[BL]>>>>>>> [%s]", Request.current().action);
-            if (logActionInvocationTime) Request.current().args.put(KEY, System.currentTimeMillis());
         }
+        if (actionMetrics || (logActionInvocation && logActionInvocationTime))
+            ActionMetrics.begin(Request.current().action);
+        if (traceProfile)
+            TimeTracker.startProfile();
         if (setTraceThemes && traceEnabled){
             String s = Play.configuration.getProperty(CONF_TRACE_THEME, "__DEF__").intern();
             if (!"__DEF__".equals(s)) {
-                setTraceThemes(s.split(","));
+                TraceThemes.setIfChanged(s);
             }
         }
     }
 
     @Override
     public void afterActionInvocation() {
+        // the lines of the action first, then the ones of the plugin
+        if (RequestBuffer.enabled)
+            RequestBuffer.end();
+        long nanos = -1;
+        if (actionMetrics || (logActionInvocation && logActionInvocationTime)) {
+            Response response = Response.current();
+            nanos = ActionMetrics.end(null != response && null != response.status && response.status >= 500);
+        }
         if (logActionInvocation) {
             if (logActionInvocationTime) {
-				Request request = Request.current();
-				if (!request.args.containsKey(KEY)) {
+				if (nanos < 0) {
 					/*
 					 * Rythm Cache4 feature can cause to bypass the beforeActionInvocation logic
 					 */
 					Logger.info("[BL]<<<<<<< [%s]", Request.current().action);
 				} else {
-					long start = (Long)Request.current().args.get(KEY), ms = System.currentTimeMillis() - start;
-					Logger.info("[BL]<<<<<<< [%s]: %sms", Request.current().action, ms);
+					Logger.info("[BL]<<<<<<< [%s]: %sms", Request.current().action, nanos / 1000000);
 				}
             } else {
                 Logger.info("[BL]<<<<<<< [%s]", Request.current().action);
             }
             Logger.info("");
         }
+        if (traceProfile) {
+            String profile = TimeTracker.endProfile(Request.current().action, traceProfileCollapsed);
+            if (null != profile)
+                Logger.info("[BL] profile [%s]:\n%s", Request.current().action, profile);
+        }
         if (!(setTraceThemes && traceEnabled)) return;
     }
 
+    @Override
+    public void onInvocationException(Throwable e) {
+        if (actionMetrics)
+            ActionMetrics.end(true);
+    }
+
+    @Override
+    public void invocationFinally() {
+        // the action failed, or was not invoked at all
+        if (RequestBuffer.enabled)
+            RequestBuffer.end();
+        if (actionMetrics || (logActionInvocation && logActionInvocationTime))
+            ActionMetrics.clear();
+        if (traceProfile)
+            TimeTracker.stopProfile();
+    }
+
     /*
      * Compare the log level specified with the application.log level defined in application.conf
      */
@@ -215,6 +598,240 @@ public class BetterLogsPlugin extends PlayPlugin {
     @Override
     public void onApplicationStart() {
         Desc.useContextClassLoader = true;
+        if (backendClosed_) {
+            // restarted, e.g. reloaded in dev mode
+            backendClosed_ = false;
+            backend_();
+        }
+        LogSite.refreshLevels();
+        TraceSampler.start();
+        TracePruner.start();
+        if (actionMetrics)
+            ActionMetrics.start(intConf(CONF_ACTION_METRICS_INTERVAL, 60));
+        if (dedupWindow > 0)
+            RepeatFilter.start(dedupWindow, dedupLevel);
+        if (heavyHitters)
+            HeavyHitters.start(intConf(CONF_HEAVY_HITTERS_CAPACITY, 64), intConf(CONF_HEAVY_HITTERS_INTERVAL, 300),
+                    intConf(CONF_HEAVY_HITTERS_TOP, 10));
+        int metricsPort = intConf(CONF_METRICS_PORT, 0);
+        if (metricsPort > 0)
+            PrometheusExporter.start(Play.configuration.getProperty(CONF_METRICS_ADDRESS, "127.0.0.1").trim(), metricsPort);
+        BetterLogsControl.register();
+        if (!disabled)
+            Logger.info("BetterLogs: enhanced %s", BetterLogsEnhancer.stats());
+        if (async) {
+            AsyncLogger.start(intConf(CONF_ASYNC_BUFFER_SIZE, 8192), asyncPolicy,
+                    intConf(CONF_ASYNC_THRESHOLD, 80), intConf(CONF_ASYNC_SAMPLE_RATE, 10),
+                    intConf(CONF_ASYNC_BATCH_SIZE, 256));
+        }
+    }
+
+    @Override
+    public void onApplicationStop() {
+        BetterLogsControl.unregister();
+        legacySites_.clear(); // the classes are reloaded
+        RepeatFilter.stop();
+        AsyncLogger.stop();
+        // close the files of the backend, the logs of the other plugins stopping go through play.Logger
+        LogBackend.set(new PlayLogBackend());
+        backendClosed_ = true;
+        TraceSampler.stop();
+        TracePruner.stop();
+        ActionMetrics.stop();
+        PrometheusExporter.stop();
+        HeavyHitters.stop();
+    }
+
+    /**
+     * Serve <code>/@betterlogs</code>, protected the same way as
+     * <code>/@status</code>. Parameters, applied in this order:
+     * <code>disable</code> and <code>enable</code> (trace probe patterns
+     * separated by ",", see {@link TraceSwitches#enable(String)}),
+     * <code>themes</code>, <code>histogram</code> and <code>level</code>. The
+     * answer is the status followed by the traced methods matching
+     * <code>list</code> if specified, and by the action metrics if
+     * <code>metrics</code> is specified (<code>metrics=reset</code> to reset
+     * them afterwards), and by the report of the noisiest log statements if
+     * <code>top</code> is specified (the number of statements, 10 if empty).
+     *
+     * <p>Serve <code>/@betterlogs/metrics</code> as well, the metrics in the
+     * Prometheus text format (see {@link PrometheusExporter})
+     */
+    @Override
+    public boolean rawInvocation(Request request, Response response) throws Exception {
+        boolean metrics = "/@betterlogs/metrics".equals(request.path);
+        if (!metrics && !"/@betterlogs".equals(request.path))
+            return false;
+        response.contentType = "text/plain";
+        if (!authorized_(request)) {
+            response.status = 401;
+            response.print("Not authorized");
+            return true;
+        }
+        if (metrics) {
+            response.contentType = PrometheusExporter.CONTENT_TYPE;
+            response.status = 200;
+            response.print(PrometheusExporter.scrape());
+            return true;
+        }
+        StringBuilder sb = new StringBuilder();
+        String s = request.params.get("disable");
+        if (null != s) {
+            for (String pattern : s.split(","))
+                sb.append("disabled ").append(TraceSwitches.disable(pattern)).append(" traced methods matching ").append(pattern.trim()).append("\n");
+        }
+        s = request.params.get("enable");
+        if (null != s) {
+            for (String pattern : s.split(","))
+                sb.append("enabled ").append(TraceSwitches.enable(pattern)).append(" traced methods matching ").append(pattern.trim()).append("\n");
+        }
+        s = request.params.get("themes");
+        if (null != s)
+            TraceThemes.setIfChanged(s);
+        s = request.params.get("histogram");
+        if (null != s)
+            TimeTracker.aggregate = Boolean.parseBoolean(s);
+        s = request.params.get("level");
+        if (null != s) {
+            try {
+                setLogLevel(s);
+            } catch (IllegalArgumentException e) {
+                response.status = 400;
+                response.print(e.getMessage());
+                return true;
+            }
+        }
+        sb.append(status());
+        s = request.params.get("list");
+        if (null != s) {
+            sb.append("\nTraced methods:\n");
+            for (String method : TraceSwitches.list("".equals(s) ? null : s))
+                sb.append(method).append("\n");
+        }
+        s = request.params.get("metrics");
+        if (null != s) {
+            sb.append("\nAction metrics:\n");
+            for (String action : ActionMetrics.list())
+                sb.append(action).append("\n");
+            if ("reset".equals(s))
+                ActionMetrics.resetAll();
+        }
+        s = request.params.get("top");
+        if (null != s) {
+            int n = 10;
+            try {
+                if (!"".equals(s)) n = Integer.parseInt(s.trim());
+            } catch (NumberFormatException e) {
+                response.status = 400;
+                response.print("invalid top: " + s);
+                return true;
+            }
+            String report = HeavyHitters.report(n, false);
+            sb.append("\nNoisiest log statements:").append(null == report ? " none" : report).append("\n");
+        }
+        response.status = 200;
+        response.print(sb.toString());
+        return true;
+    }
+
+    /*
+     * Authorized the same way as /@status, the key could be sent as a bearer
+     * token as well
+     */
+    private static boolean authorized_(Request request) {
+        Header authorization = request.headers.get("authorization");
+        if (null == authorization || null == authorization.value())
+            return false;
+        String key = authorization.value();
+        if (key.startsWith("Bearer "))
+            key = key.substring(7).trim();
+        return Crypto.sign("@betterlogs").equals(key) || System.getProperty("statusKey", Play.secretKey).equals(key);
+    }
+
+    @Override
+    public String getStatus() {
+        if (!traceEnabled && !traceProbes && !actionMetrics && !heavyHitters && 0 == dedupWindow && !StackFingerprints.enabled && !RequestBuffer.enabled && null == AsyncLogger.instance()) return null;
+        return status();
+    }
+
+    static String status() {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.println("BetterLogs:");
+        out.println("~~~~~~~~~~~");
+        out.println("Enhanced " + BetterLogsEnhancer.stats());
+        out.println(String.format("Log level: %s, trace themes: %s, histogram: %s", getLogLevel(),
+                TraceThemes.activeNames(), TimeTracker.aggregate));
+        if (traceEnabled || traceProbes) {
+            out.println("Trace switches: " + TraceSwitches.rules());
+            out.println(TraceSampler.status());
+            if (TracePruner.enabled)
+                out.println(TracePruner.status());
+        }
+        if (actionMetrics)
+            out.println(ActionMetrics.status());
+        if (heavyHitters)
+            out.println(HeavyHitters.status());
+        if (dedupWindow > 0)
+            out.println(RepeatFilter.status());
+        if (StackFingerprints.enabled)
+            out.println(StackFingerprints.status());
+        if (RequestBuffer.enabled)
+            out.println(RequestBuffer.status());
+        if (null != AsyncLogger.instance())
+            out.println(String.format("Async: queued %s, written %s, pending %s, dropped %s", AsyncLogger.queued(),
+                    AsyncLogger.written(), AsyncLogger.pending(), AsyncLogger.dropped()));
+        return sw.toString();
+    }
+
+    /**
+     * The integer configured, the default if none or invalid (with a warning)
+     */
+    static int intConf(String key, int def) {
+        String s = Play.configuration.getProperty(key);
+        if (null == s) return def;
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            Logger.warn("invalid %s found in config: %s. Set to %s", key, s, def);
+            return def;
+        }
+    }
+
+    /**
+     * Let enhanced code know the log level has been changed at runtime, e.g.
+     * by reconfiguring log4j. Log calls below the level found at the last
+     * refresh are skipped without evaluating their arguments
+     */
+    public static void refreshLogLevels() {
+        LogSite.refreshLevels();
+    }
+
+    /**
+     * Change the level of the application logger (log4j, or
+     * java.util.logging if Play is forced to use it), and let enhanced code
+     * know about it
+     */
+    public static void setLogLevel(String level) {
+        level = level.trim().toUpperCase();
+        if (!level.matches("(OFF|FATAL|ERROR|WARN|INFO|DEBUG|TRACE|ALL)"))
+            throw new IllegalArgumentException("unknown log level: " + level);
+        if (Logger.forceJuli || null == Logger.log4j) {
+            if (null != Logger.juli)
+                Logger.juli.setLevel(toJuliLevel(level));
+        } else {
+            Logger.log4j.setLevel(org.apache.log4j.Level.toLevel(level));
+        }
+        refreshLogLevels();
+    }
+
+    /**
+     * The effective level of the application logger
+     */
+    public static String getLogLevel() {
+        if (Logger.forceJuli || null == Logger.log4j)
+            return null == Logger.juli || null == Logger.juli.getLevel() ? "INFO" : Logger.juli.getLevel().getName();
+        return Logger.log4j.getEffectiveLevel().toString();
     }
 
 //    private static void trace_(String level, String message, Object ... args) {
@@ -236,87 +853,48 @@ public class BetterLogsPlugin extends PlayPlugin {
 //        }
 //    }
 
+    // the sites of the classes enhanced by previous versions, by level, class, method, signature and line
+    private static final ConcurrentHashMap<String, LogSite> legacySites_ = new ConcurrentHashMap<String, LogSite>();
+
+    /**
+     * Generic log dispatcher. Classes enhanced by this version call the
+     * precompiled {@link LogSite} of each log statement instead; this one is
+     * kept for classes enhanced by previous versions, their sites are
+     * created on the first call of each statement.
+     */
     public static void log(String level, String clazz, String clazzSimpleName,
             String packageName, String method, String signature,
             String fileName, String relativeFileName, int line, Object[] args) {
         if (null == argsPrefix) return; // not initialized yet
-        Thread thread = Thread.currentThread();
         Throwable throwable = null;
         String pattern = "";
+        int skip = 1;
         if (args[0] instanceof Throwable) {
             throwable = (Throwable) args[0];
             pattern = (String) args[1];
+            skip = 2;
         } else {
             pattern = (String) args[0];
         }
-        pattern = stringFormatPrefix + pattern;
-        Object[] betterLogsArgs = new Object[argsPrefix.size()];
-        int i = 0;
-        for (String argName : argsPrefix) {
-            if ("class".equals(argName))
-                betterLogsArgs[i] = clazz;
-            if ("simpleClass".equals(argName))
-                betterLogsArgs[i] = clazzSimpleName;
-            if ("package".equals(argName))
-                betterLogsArgs[i] = packageName;
-            if ("method".equals(argName))
-                betterLogsArgs[i] = method;
-            if ("file".equals(argName))
-                betterLogsArgs[i] = fileName;
-            if ("line".equals(argName))
-                betterLogsArgs[i] = line;
-            if ("relativeFile".equals(argName))
-                betterLogsArgs[i] = relativeFileName;
-            if ("signature".equals(argName))
-                betterLogsArgs[i] = signature;
-            if ("thread".equals(argName))
-                betterLogsArgs[i] = thread.getId();
-
-            i++;
-        }
-        if ("trace".equals(level)) {
-            Logger.trace(pattern, handleLogArgs(betterLogsArgs, args, 1));
-        } else if ("debug".equals(level)) {
-            if (throwable != null)
-                Logger.debug(throwable, pattern,
-                        handleLogArgs(betterLogsArgs, args, 2));
-            else
-                Logger.debug(pattern, handleLogArgs(betterLogsArgs, args, 1));
-        } else if ("info".equals(level)) {
-            if (throwable != null)
-                Logger.info(throwable, pattern,
-                        handleLogArgs(betterLogsArgs, args, 2));
-            else
-                Logger.info(pattern, handleLogArgs(betterLogsArgs, args, 1));
-        } else if ("warn".equals(level)) {
-            if (throwable != null)
-                Logger.warn(throwable, pattern,
-                        handleLogArgs(betterLogsArgs, args, 2));
-            else
-                Logger.warn(pattern, handleLogArgs(betterLogsArgs, args, 1));
-        } else if ("error".equals(level)) {
-            if (throwable != null)
-                Logger.error(throwable, pattern,
-                        handleLogArgs(betterLogsArgs, args, 2));
-            else
-                Logger.error(pattern, handleLogArgs(betterLogsArgs, args, 1));
-        } else if ("fatal".equals(level)) {
-            if (throwable != null)
-                Logger.fatal(throwable, pattern,
-                        handleLogArgs(betterLogsArgs, args, 2));
-            else
-                Logger.fatal(pattern, handleLogArgs(betterLogsArgs, args, 1));
+        String key = level + ":" + clazz + "." + method + signature + ":" + line;
+        LogSite site = legacySites_.get(key);
+        if (null == site) {
+            site = new LogSite(level, clazz, clazzSimpleName, packageName, method,
+                    signature, fileName, relativeFileName, line);
+            LogSite existing = legacySites_.putIfAbsent(key, site);
+            if (null != existing)
+                site = existing;
         }
+        site.log(throwable, pattern, handleLogArgs(args, skip));
     }
 
-    private static Object[] handleLogArgs(Object[] injected, Object[] original,
-            int skip) {
+    static Object[] handleLogArgs(Object[] original, int skip) {
         Object[] kept = Arrays.copyOfRange(original, skip, original.length - 1);
         if (original[original.length - 1] instanceof Object[]) // flatten
             kept = concat(kept, (Object[]) original[original.length - 1]);
         else
             kept = concat(kept, new Object[] { original[original.length - 1] });
-        return concat(injected, kept);
+        return kept;
     }
 
     private static Object[] concat(Object[] o1, Object[] o2) {
@@ -364,29 +942,19 @@ public class BetterLogsPlugin extends PlayPlugin {
         return "trace";
     }
 
-    private static Set<String> traceThemes_ = new HashSet<String>();
-
-    private static Set<String> strs_(String... traceThemes) {
-        Set<String> set = new HashSet<String>();
-        for (String s: traceThemes) {
-            set.addAll(Arrays.asList(s.split("[\\s+,;:]+")));
-        }
-        return set;
-    }
-
     /**
      * Set the trace theme at runtime
      *
      * @param traceThemes
      */
     public static final void setTraceThemes(String ... traceThemes) {
-        traceThemes_.clear();
-        traceThemes_.addAll(strs_(traceThemes));
+        TraceThemes.set(traceThemes);
     }
 
     /**
-     * Called by enhanced code to determine whether annotated trace themes
-     * match the the themes set with {@link #setTraceThemes(String...)}
+     * Determine whether trace themes match the the themes set with
+     * {@link #setTraceThemes(String...)}. Enhanced code checks the themes
+     * precompiled in its {@link TraceSite} instead
      *
      * <p>There there is any one theme found in both trace themes, then they
      * are said to be matched and trace should be output
@@ -396,21 +964,11 @@ public class BetterLogsPlugin extends PlayPlugin {
      */
     public static boolean traceThemesMatch(String ... traceThemes) {
         if (traceThemes.length == 0) return true; // default trace theme
-        for (String theme: strs_(traceThemes)) {
-            if (traceThemes_.contains(theme)) return true;
-        }
-        return false;
+        return TraceThemes.match(traceThemes);
     }
 
     public static String traceThemesString(String ... traceThemes) {
         if (traceThemes.length == 0) return "_"; //default trace theme
-        StringBuilder sb = new StringBuilder();
-        for (String s: strs_(traceThemes)) {
-            if (traceThemes_.contains(s)) {
-                if (sb.length() == 0) sb.append(s);
-                else sb.append(",").append(s);
-            }
-        }
-        return sb.toString();
+        return TraceThemes.matched(traceThemes);
     }
 }
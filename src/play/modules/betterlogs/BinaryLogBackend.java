@@ -0,0 +1,352 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import play.Logger;
+import play.Play;
+
+/**
+ * Write the log calls to a compact binary file, decoded offline by
+ * {@link BinaryLogDecoder}.
+ *
+ * <p>The constant part of each call site (level, class, file, line, method
+ * and the rendered prefix) is written once to a dictionary when the site binds
+ * to the backend, and so is each pattern the first time it is logged. A log
+ * call is then a small record: the site id, the time, the thread id, the
+ * pattern id and the arguments, encoded with their type so that the decoder
+ * formats them as <code>String.format</code> would have. Nothing is formatted
+ * on the calling thread.
+ *
+ * <p>Records are encoded into a direct buffer written to the file when full
+ * and every second. Format, all numbers big endian:
+ * <pre>
+ * file    := (header record*)*
+ * header  := "BLOG" version:byte
+ * record  := SITE | PATTERN | EVENT
+ * SITE    := 1 id:int level:byte class:str file:str method:str signature:str line:int
+ *            prefix:str threadSlots:byte formatAlways:byte
+ * PATTERN := 2 id:int pattern:str
+ * EVENT   := 3 site:int timestamp:long threadId:long pattern:int [pattern:str if -1]
+ *            argc:short arg* throwable:str
+ * arg     := tag:byte value
+ * str     := length:int (-1 for null) utf-8 bytes
+ * </pre>
+ * The dictionaries are reset at each header, each time the backend is
+ * started.
+ */
+class BinaryLogBackend extends LogBackend {
+
+    // constants only, inlined in BinaryLogDecoder which must not load the backend
+    static final String MAGIC = "BLOG";
+    static final byte VERSION = 1;
+
+    static final byte SITE = 1;
+    static final byte PATTERN = 2;
+    static final byte EVENT = 3;
+
+    static final byte NULL = 0;
+    static final byte STRING = 1;
+    static final byte INT = 2;
+    static final byte LONG = 3;
+    static final byte DOUBLE = 4;
+    static final byte FLOAT = 5;
+    static final byte SHORT = 6;
+    static final byte BYTE = 7;
+    static final byte BOOLEAN = 8;
+    static final byte CHAR = 9;
+    static final byte BIG_INTEGER = 10;
+    static final byte BIG_DECIMAL = 11;
+    static final byte DATE = 12;
+    static final byte OTHER = 13;
+    // toString() failed: the decoder falls back to the raw pattern as play.Logger does
+    static final byte UNPRINTABLE = 14;
+
+    // patterns not constant at their call site are written inline beyond this
+    private static final int MAX_PATTERNS = 65536;
+
+    private final PlayLogBackend levels_ = new PlayLogBackend();
+    private final File file_;
+    private FileChannel channel_;
+    private ByteBuffer buffer_;
+    private final Map<String, Integer> patterns_ = new HashMap<String, Integer>();
+    private int sites_ = 0;
+    private boolean failed_ = false;
+    private final Timer timer_;
+
+    /**
+     * The file and buffer size are read from the configuration, see
+     * {@link BetterLogsPlugin#CONF_BINARY_FILE}
+     */
+    public BinaryLogBackend() throws IOException {
+        this(new File(Play.applicationPath, Play.configuration.getProperty(BetterLogsPlugin.CONF_BINARY_FILE,
+                "logs/betterlogs.bin")), BetterLogsPlugin.intConf(BetterLogsPlugin.CONF_BINARY_BUFFER_SIZE, 65536));
+    }
+
+    BinaryLogBackend(File file, int bufferSize) throws IOException {
+        file_ = file;
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (null != dir)
+            dir.mkdirs();
+        channel_ = new FileOutputStream(file, true).getChannel();
+        buffer_ = ByteBuffer.allocateDirect(Math.max(1024, bufferSize));
+        for (int i = 0; i < MAGIC.length(); ++i)
+            buffer_.put((byte) MAGIC.charAt(i));
+        buffer_.put(VERSION);
+        timer_ = new Timer("betterlogs-binary", true);
+        timer_.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (BinaryLogBackend.this) {
+                    flush_();
+                }
+            }
+        }, 1000, 1000);
+    }
+
+    /**
+     * @return the id of the site in the dictionary
+     */
+    @Override
+    public synchronized Object bind(LogSite site) {
+        int id = sites_++;
+        LogSite.Prefix prefix = site.prefix();
+        ensure_(64);
+        buffer_.put(SITE).putInt(id).put((byte) site.level);
+        putString_(site.clazz);
+        putString_(site.fileName);
+        putString_(site.method);
+        putString_(site.signature);
+        ensure_(4);
+        buffer_.putInt(site.line);
+        putString_(prefix.format);
+        ensure_(2);
+        buffer_.put((byte) prefix.threadSlots).put((byte) (prefix.formatAlways ? 1 : 0));
+        return Integer.valueOf(id);
+    }
+
+    @Override
+    public boolean isEnabled(Object logger, int level) {
+        return levels_.isEnabled(logger, level);
+    }
+
+    @Override
+    public int threshold() {
+        return levels_.threshold();
+    }
+
+    @Override
+    public boolean raw() {
+        return true;
+    }
+
+    @Override
+    public synchronized void writeRaw(Object logger, LogSite site, long timestamp, String threadName,
+            long threadId, Throwable throwable, String pattern, Object[] args, int argc) {
+        if (null == channel_)
+            return;
+        Integer patternId = null == pattern ? null : patterns_.get(pattern);
+        if (null == patternId && null != pattern && patterns_.size() < MAX_PATTERNS) {
+            patternId = Integer.valueOf(patterns_.size());
+            patterns_.put(pattern, patternId);
+            ensure_(5);
+            buffer_.put(PATTERN).putInt(patternId.intValue());
+            putString_(pattern);
+        }
+        ensure_(27);
+        buffer_.put(EVENT).putInt(((Integer) logger).intValue()).putLong(timestamp).putLong(threadId);
+        if (null == patternId) {
+            buffer_.putInt(-1);
+            putString_(pattern);
+            ensure_(2);
+        } else {
+            buffer_.putInt(patternId.intValue());
+        }
+        buffer_.putShort((short) argc);
+        for (int i = 0; i < argc; ++i)
+            putArg_(args[i]);
+        putString_(null == throwable ? null : stackTrace(throwable));
+    }
+
+    @Override
+    public void write(Object logger, LogSite site, long timestamp, String threadName, long threadId,
+            Throwable throwable, String message) {
+        // never called: the backend is raw. Written as a pattern without argument otherwise
+        writeRaw(logger, site, timestamp, threadName, threadId, throwable, message, new Object[0], 0);
+    }
+
+    /**
+     * The backend, which writes the records holding its own lock
+     */
+    @Override
+    public Object batchLock(Object logger) {
+        return this;
+    }
+
+    @Override
+    public synchronized void flush() {
+        flush_();
+    }
+
+    /**
+     * Write what is buffered and close the file, the records written
+     * afterwards are dropped
+     */
+    @Override
+    public synchronized void close() {
+        timer_.cancel();
+        flush_();
+        try {
+            if (null != channel_)
+                channel_.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        channel_ = null;
+    }
+
+    private void putArg_(Object o) {
+        ensure_(9);
+        if (null == o) {
+            buffer_.put(NULL);
+        } else if (o instanceof String) {
+            buffer_.put(STRING);
+            putString_((String) o);
+        } else if (o instanceof Integer) {
+            buffer_.put(INT).putInt(((Integer) o).intValue());
+        } else if (o instanceof Long) {
+            buffer_.put(LONG).putLong(((Long) o).longValue());
+        } else if (o instanceof Double) {
+            buffer_.put(DOUBLE).putDouble(((Double) o).doubleValue());
+        } else if (o instanceof Float) {
+            buffer_.put(FLOAT).putFloat(((Float) o).floatValue());
+        } else if (o instanceof Short) {
+            buffer_.put(SHORT).putShort(((Short) o).shortValue());
+        } else if (o instanceof Byte) {
+            buffer_.put(BYTE).put(((Byte) o).byteValue());
+        } else if (o instanceof Boolean) {
+            buffer_.put(BOOLEAN).put((byte) (((Boolean) o).booleanValue() ? 1 : 0));
+        } else if (o instanceof Character) {
+            buffer_.put(CHAR).putChar(((Character) o).charValue());
+        } else if (o instanceof Date) {
+            buffer_.put(DATE).putLong(((Date) o).getTime());
+        } else if (o instanceof Calendar) {
+            buffer_.put(DATE).putLong(((Calendar) o).getTimeInMillis());
+        } else {
+            String s;
+            try {
+                s = String.valueOf(o);
+            } catch (RuntimeException e) {
+                buffer_.put(UNPRINTABLE);
+                return;
+            }
+            buffer_.put(o instanceof BigInteger ? BIG_INTEGER : (o instanceof BigDecimal ? BIG_DECIMAL : OTHER));
+            putString_(s);
+        }
+    }
+
+    private void putString_(String s) {
+        if (null == s) {
+            ensure_(4);
+            buffer_.putInt(-1);
+            return;
+        }
+        int n = s.length();
+        ensure_(4 + 3 * n);
+        int start = buffer_.position();
+        buffer_.putInt(0);
+        utf8(s, buffer_);
+        buffer_.putInt(start, buffer_.position() - start - 4);
+    }
+
+    /**
+     * Encode the characters in UTF-8 into the buffer, which must have room
+     * for 3 bytes per character
+     */
+    static void utf8(CharSequence s, ByteBuffer buffer) {
+        int n = s.length();
+        for (int i = 0; i < n; ++i) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xf0 | (cp >> 18))).put((byte) (0x80 | ((cp >> 12) & 0x3f)))
+                        .put((byte) (0x80 | ((cp >> 6) & 0x3f))).put((byte) (0x80 | (cp & 0x3f)));
+            } else {
+                buffer.put((byte) (0xe0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3f)))
+                        .put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    static String stackTrace(Throwable t) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        t.printStackTrace(pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    /*
+     * Make room for n bytes, the buffer grows if it could never hold them
+     */
+    private void ensure_(int n) {
+        if (buffer_.remaining() >= n)
+            return;
+        flush_();
+        if (buffer_.capacity() < n) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(n, buffer_.capacity() * 2));
+            buffer_.flip();
+            buffer.put(buffer_);
+            buffer_ = buffer;
+        }
+    }
+
+    private void flush_() {
+        buffer_.flip();
+        try {
+            if (null != channel_) {
+                while (buffer_.hasRemaining())
+                    channel_.write(buffer_);
+            }
+        } catch (IOException e) {
+            if (!failed_) {
+                failed_ = true;
+                Logger.error(e, "BetterLogs: cannot write the binary log file %s", file_);
+            }
+        } finally {
+            buffer_.clear();
+        }
+    }
+}
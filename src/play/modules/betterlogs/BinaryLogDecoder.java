@@ -0,0 +1,238 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Decode the files written by {@link BinaryLogBackend} back to text, one line
+ * per log call formatted as the default Play console appender does
+ * (<code>%d{ABSOLUTE} %-5p ~ %m%n</code>):
+ *
+ * <pre>
+ * java -cp lib/play-betterlogs.jar play.modules.betterlogs.BinaryLogDecoder [-date &lt;SimpleDateFormat&gt;] file...
+ * </pre>
+ *
+ * Does not depend on Play.
+ */
+public class BinaryLogDecoder {
+
+    private static final String[] LEVELS = { "TRACE", "DEBUG", "INFO ", "WARN ", "ERROR", "FATAL" };
+
+    /**
+     * A call site read from the dictionary
+     */
+    private static final class Site {
+        int level;
+        String prefix;
+        int threadSlots;
+        boolean formatAlways;
+    }
+
+    /**
+     * An argument whose toString() failed when logged
+     */
+    private static final class Unprintable {
+        @Override
+        public String toString() {
+            throw new IllegalStateException();
+        }
+    }
+
+    private final SimpleDateFormat dateFormat_;
+    private final List<Site> sites_ = new ArrayList<Site>();
+    private final List<String> patterns_ = new ArrayList<String>();
+    private Object[] args_ = new Object[8];
+
+    public BinaryLogDecoder(String dateFormat) {
+        dateFormat_ = new SimpleDateFormat(dateFormat);
+    }
+
+    public static void main(String[] args) throws IOException {
+        String dateFormat = "HH:mm:ss,SSS";
+        int i = 0;
+        if (args.length > 1 && "-date".equals(args[0])) {
+            dateFormat = args[1];
+            i = 2;
+        }
+        if (i == args.length) {
+            System.err.println("usage: BinaryLogDecoder [-date <SimpleDateFormat>] file...");
+            System.exit(1);
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        for (; i < args.length; ++i) {
+            InputStream in = new FileInputStream(args[i]);
+            try {
+                new BinaryLogDecoder(dateFormat).decode(in, out);
+            } finally {
+                in.close();
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Decode a binary log stream, till its end
+     */
+    public void decode(InputStream is, Writer out) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        while (true) {
+            int type = in.read();
+            if (type < 0)
+                return;
+            try {
+                switch (type) {
+                case 'B':
+                    header_(in);
+                    break;
+                case BinaryLogBackend.SITE:
+                    site_(in);
+                    break;
+                case BinaryLogBackend.PATTERN:
+                    int id = in.readInt();
+                    set_(patterns_, id, string_(in));
+                    break;
+                case BinaryLogBackend.EVENT:
+                    event_(in, out);
+                    break;
+                default:
+                    throw new IOException("corrupted binary log: unknown record " + type);
+                }
+            } catch (EOFException e) {
+                return; // the last record has not been written completely
+            }
+        }
+    }
+
+    private void header_(DataInputStream in) throws IOException {
+        // the first byte has been read already
+        for (int i = 1; i < BinaryLogBackend.MAGIC.length(); ++i) {
+            if (in.readByte() != BinaryLogBackend.MAGIC.charAt(i))
+                throw new IOException("not a binary log");
+        }
+        int version = in.readByte();
+        if (version != BinaryLogBackend.VERSION)
+            throw new IOException("unsupported binary log version: " + version);
+        // the backend has been started again
+        sites_.clear();
+        patterns_.clear();
+    }
+
+    private void site_(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        Site site = new Site();
+        site.level = in.readByte();
+        string_(in); // class
+        string_(in); // file
+        string_(in); // method
+        string_(in); // signature
+        in.readInt(); // line
+        site.prefix = string_(in);
+        site.threadSlots = in.readByte();
+        site.formatAlways = in.readByte() != 0;
+        set_(sites_, id, site);
+    }
+
+    private void event_(DataInputStream in, Writer out) throws IOException {
+        Site site = sites_.get(in.readInt());
+        long timestamp = in.readLong();
+        long threadId = in.readLong();
+        int patternId = in.readInt();
+        String pattern = patternId < 0 ? string_(in) : patterns_.get(patternId);
+        int argc = in.readShort();
+        if (args_.length < argc)
+            args_ = new Object[argc];
+        for (int i = 0; i < argc; ++i)
+            args_[i] = arg_(in);
+        String throwable = string_(in);
+        String message = LogSite.message(site.prefix, site.threadSlots, site.formatAlways, threadId,
+                pattern, args_, argc);
+        out.write(dateFormat_.format(new Date(timestamp)));
+        out.write(' ');
+        out.write(LEVELS[site.level]);
+        out.write(" ~ ");
+        out.write(message);
+        out.write('\n');
+        if (null != throwable)
+            out.write(throwable);
+    }
+
+    private static Object arg_(DataInputStream in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+        case BinaryLogBackend.NULL:
+            return null;
+        case BinaryLogBackend.STRING:
+        case BinaryLogBackend.OTHER:
+            return string_(in);
+        case BinaryLogBackend.INT:
+            return in.readInt();
+        case BinaryLogBackend.LONG:
+            return in.readLong();
+        case BinaryLogBackend.DOUBLE:
+            return in.readDouble();
+        case BinaryLogBackend.FLOAT:
+            return in.readFloat();
+        case BinaryLogBackend.SHORT:
+            return in.readShort();
+        case BinaryLogBackend.BYTE:
+            return in.readByte();
+        case BinaryLogBackend.BOOLEAN:
+            return in.readByte() != 0;
+        case BinaryLogBackend.CHAR:
+            return in.readChar();
+        case BinaryLogBackend.BIG_INTEGER:
+            return new BigInteger(string_(in));
+        case BinaryLogBackend.BIG_DECIMAL:
+            return new BigDecimal(string_(in));
+        case BinaryLogBackend.DATE:
+            return new Date(in.readLong());
+        case BinaryLogBackend.UNPRINTABLE:
+            return new Unprintable();
+        default:
+            throw new IOException("corrupted binary log: unknown argument type " + tag);
+        }
+    }
+
+    private static String string_(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static <T> void set_(List<T> list, int id, T value) {
+        while (list.size() <= id)
+            list.add(null);
+        list.set(id, value);
+    }
+}
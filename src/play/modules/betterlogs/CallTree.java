@@ -0,0 +1,167 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.Arrays;
+
+/**
+ * Call tree of the traced methods called during one action invocation: the
+ * calls, total and self time of each method by call path.
+ *
+ * <p>One instance is kept per thread by {@link TimeTracker} and reused from
+ * one request to the next: the nodes are stored in parallel arrays which only
+ * grow up to <code>maxNodes</code>, building the tree does not allocate.
+ */
+final class CallTree {
+
+    static final int ROOT = 0;
+    // the node of a call not recorded because the tree was full
+    static final int DROPPED = -2;
+
+    private final int maxNodes_;
+    private TraceSite[] sites_ = new TraceSite[64];
+    private int[] parents_ = new int[64];
+    private int[] firstChildren_ = new int[64];
+    private int[] nextSiblings_ = new int[64];
+    private int[] calls_ = new int[64];
+    private long[] totals_ = new long[64];
+    // time spent in the traced children
+    private long[] children_ = new long[64];
+    private int size_;
+    // calls not recorded because the tree was full
+    private int dropped_;
+    private long start_;
+
+    CallTree(int maxNodes) {
+        maxNodes_ = Math.max(2, maxNodes);
+    }
+
+    /**
+     * Forget the previous tree, the root is the action starting now
+     */
+    void reset() {
+        Arrays.fill(sites_, 0, size_, null);
+        size_ = 0;
+        dropped_ = 0;
+        start_ = System.nanoTime();
+        node_(null, -1);
+    }
+
+    /**
+     * A call of the method specified under the node specified
+     *
+     * @return the node of the call path, {@link #DROPPED} if the tree is full
+     */
+    int enter(TraceSite site, int parent) {
+        for (int n = firstChildren_[parent]; n >= 0; n = nextSiblings_[n]) {
+            if (sites_[n] == site)
+                return n;
+        }
+        if (size_ == maxNodes_) {
+            dropped_++;
+            return DROPPED;
+        }
+        return node_(site, parent);
+    }
+
+    private int node_(TraceSite site, int parent) {
+        if (size_ == sites_.length) {
+            int size = Math.min(maxNodes_, size_ * 2);
+            sites_ = Arrays.copyOf(sites_, size);
+            parents_ = Arrays.copyOf(parents_, size);
+            firstChildren_ = Arrays.copyOf(firstChildren_, size);
+            nextSiblings_ = Arrays.copyOf(nextSiblings_, size);
+            calls_ = Arrays.copyOf(calls_, size);
+            totals_ = Arrays.copyOf(totals_, size);
+            children_ = Arrays.copyOf(children_, size);
+        }
+        int n = size_++;
+        sites_[n] = site;
+        parents_[n] = parent;
+        firstChildren_[n] = -1;
+        calls_[n] = 0;
+        totals_[n] = 0;
+        children_[n] = 0;
+        nextSiblings_[n] = -1;
+        if (parent >= 0) {
+            // appended last so that the children are rendered in call order
+            int last = firstChildren_[parent];
+            if (last < 0) {
+                firstChildren_[parent] = n;
+            } else {
+                while (nextSiblings_[last] >= 0)
+                    last = nextSiblings_[last];
+                nextSiblings_[last] = n;
+            }
+        }
+        return n;
+    }
+
+    void exit(int node, long nanos) {
+        if (node >= size_)
+            return; // entered before the reset
+        calls_[node]++;
+        totals_[node] += nanos;
+        children_[parents_[node]] += nanos;
+    }
+
+    /**
+     * Render the tree, one line per node indented by depth with the calls,
+     * total and self time in milliseconds
+     */
+    void render(String action, StringBuilder sb) {
+        long total = System.nanoTime() - start_;
+        sb.append(action).append(" total=").append(TimeTracker.millis(total)).append("ms self=")
+                .append(TimeTracker.millis(Math.max(0, total - children_[ROOT]))).append("ms");
+        render_(firstChildren_[ROOT], 1, sb);
+        if (dropped_ > 0)
+            sb.append('\n').append(dropped_).append(" calls not recorded");
+    }
+
+    private void render_(int n, int depth, StringBuilder sb) {
+        for (; n >= 0; n = nextSiblings_[n]) {
+            sb.append('\n');
+            for (int d = depth; d > 1; --d)
+                sb.append("  ");
+            sb.append(sites_[n]).append(" calls=").append(calls_[n])
+                    .append(" total=").append(TimeTracker.millis(totals_[n]))
+                    .append("ms self=").append(TimeTracker.millis(Math.max(0, totals_[n] - children_[n])))
+                    .append("ms");
+            render_(firstChildren_[n], depth + 1, sb);
+        }
+    }
+
+    /**
+     * Render the tree in the collapsed stack format of flame graph tools:
+     * one line per call path, "frame;frame;frame self-microseconds"
+     */
+    void renderCollapsed(String action, StringBuilder sb) {
+        long total = System.nanoTime() - start_;
+        String frame = action.replace(';', '_').replace(' ', '_');
+        sb.append(frame).append(' ').append(Math.max(0, total - children_[ROOT]) / 1000);
+        collapse_(firstChildren_[ROOT], frame, sb);
+    }
+
+    private void collapse_(int n, String path, StringBuilder sb) {
+        for (; n >= 0; n = nextSiblings_[n]) {
+            // the signature is left out: it contains ';'
+            String frame = path + ";" + sites_[n].clazz + "." + sites_[n].method;
+            sb.append('\n').append(frame).append(' ')
+                    .append(Math.max(0, totals_[n] - children_[n]) / 1000);
+            collapse_(firstChildren_[n], frame, sb);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import play.Logger;
+
+/**
+ * On-disk cache of the bytecode enhanced by {@link BetterLogsEnhancer}.
+ *
+ * <p>One file per class in <code>tmp/betterlogs</code>, holding the key it
+ * has been enhanced for followed by the bytecode. The key is a digest of the
+ * bytecode to enhance, the relative path of the source file, the BetterLogs
+ * configuration and the module itself (its jar, or its classes), so that an entry is never used for
+ * another input: there is no need to clean the cache when the configuration
+ * or the module changes. <code>play clean</code> clears it.
+ */
+final class EnhancerCache {
+
+    private static File dir_;
+    private static byte[] configDigest_;
+
+    private EnhancerCache() {
+    }
+
+    /**
+     * Read the configuration the enhancement depends on
+     *
+     * @param tmpDir the Play tmp directory, null for no cache
+     */
+    static synchronized void configure(Properties conf, File tmpDir) {
+        dir_ = null;
+        if (null == tmpDir)
+            return;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            // all the betterlogs options, and the application log level the trace level is compared to
+            Map<String, String> sorted = new TreeMap<String, String>();
+            for (Map.Entry<Object, Object> e : conf.entrySet()) {
+                String key = e.getKey().toString();
+                if (key.startsWith("betterlogs.") || key.equals("application.log"))
+                    sorted.put(key, String.valueOf(e.getValue()));
+            }
+            md.update(sorted.toString().getBytes("UTF-8"));
+            module_(md);
+            configDigest_ = md.digest();
+            dir_ = new File(tmpDir, "betterlogs");
+        } catch (Exception e) {
+            Logger.warn(e, "BetterLogs: enhancement cache disabled");
+        }
+    }
+
+    /*
+     * The enhanced bytecode depends on the enhancer and on the classes it
+     * calls, or whose constructors the enhanced code calls: digest the jar
+     * of the module, or all its classes when not packaged
+     */
+    private static void module_(MessageDigest md) throws Exception {
+        CodeSource source = BetterLogsEnhancer.class.getProtectionDomain().getCodeSource();
+        URL location = null == source ? null : source.getLocation();
+        File file = null == location || !"file".equals(location.getProtocol()) ? null : new File(location.toURI());
+        if (null != file && file.isFile()) {
+            md.update(file_(file));
+            return;
+        }
+        File dir = null == file ? null : new File(file, BetterLogsEnhancer.class.getPackage().getName().replace('.', '/'));
+        String[] names = null == dir ? null : dir.list();
+        if (null == names) {
+            // unknown layout: the classes of the enhancement at least
+            for (Class<?> c : new Class<?>[] { BetterLogsEnhancer.class, TraceFilter.class, LogSite.class,
+                    TraceSite.class, Trace.class })
+                md.update(resource_(c));
+            return;
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            if (name.endsWith(".class")) {
+                md.update(name.getBytes("UTF-8"));
+                md.update(file_(new File(dir, name)));
+            }
+        }
+    }
+
+    private static byte[] file_(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            return read_(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] resource_(Class<?> c) throws IOException {
+        InputStream is = c.getResourceAsStream(c.getSimpleName() + ".class");
+        if (null == is)
+            throw new IOException("cannot read " + c.getName());
+        try {
+            return read_(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static byte[] read_(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        for (int n; (n = is.read(buf)) > 0;)
+            os.write(buf, 0, n);
+        return os.toByteArray();
+    }
+
+    static boolean enabled() {
+        return null != dir_;
+    }
+
+    /**
+     * The key of the enhancement of the bytecode specified
+     */
+    static byte[] key(byte[] bytecode, String relativePath) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(configDigest_);
+            md.update(String.valueOf(relativePath).getBytes("UTF-8"));
+            md.update(bytecode);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The bytecode cached for the class and the key specified, null if none
+     */
+    static byte[] get(String className, byte[] key) {
+        File file = file_(className);
+        if (null == file || !file.isFile())
+            return null;
+        try {
+            InputStream is = new FileInputStream(file);
+            byte[] content;
+            try {
+                content = read_(is);
+            } finally {
+                is.close();
+            }
+            if (content.length <= key.length
+                    || !Arrays.equals(key, Arrays.copyOf(content, key.length)))
+                return null;
+            return Arrays.copyOfRange(content, key.length, content.length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static void put(String className, byte[] key, byte[] bytecode) {
+        File file = file_(className);
+        if (null == file)
+            return;
+        try {
+            file.getParentFile().mkdirs();
+            File tmp = new File(file.getPath() + ".tmp");
+            FileOutputStream os = new FileOutputStream(tmp);
+            try {
+                os.write(key);
+                os.write(bytecode);
+            } finally {
+                os.close();
+            }
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                tmp.renameTo(file);
+            }
+        } catch (IOException e) {
+            Logger.debug(e, "BetterLogs: cannot cache the enhanced bytecode of %s", className);
+        }
+    }
+
+    private static File file_(String className) {
+        File dir = dir_;
+        return null == dir ? null : new File(dir, className + ".class");
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import play.Logger;
+
+/**
+ * The log statements writing the most lines and characters.
+ *
+ * <p>Each thread keeps two Space-Saving sketches of a fixed number of
+ * counters, one weighted by lines and one by characters: a statement not
+ * counted yet takes over the smallest counter and inherits its count as its
+ * error. The sketches are only locked by their own thread, except while read,
+ * so recording does not contend. Reading merges the sketches of all the
+ * threads: the count of a statement is an overestimate, never lower than the
+ * actual count if it has been counted by every thread, and count - error is
+ * a lower bound.
+ */
+public final class HeavyHitters {
+
+    /**
+     * Whether the log statements record the lines written
+     */
+    static volatile boolean enabled = false;
+    static volatile int capacity = 64;
+    private static int interval_;
+    private static int top_ = 10;
+    private static Timer timer_;
+
+    private static final ConcurrentLinkedQueue<Local> locals_ = new ConcurrentLinkedQueue<Local>();
+    private static final ThreadLocal<Local> local_ = new ThreadLocal<Local>() {
+        @Override
+        protected Local initialValue() {
+            Local local = new Local(capacity);
+            locals_.add(local);
+            return local;
+        }
+    };
+
+    private HeavyHitters() {
+    }
+
+    /*
+     * The sketches of one thread
+     */
+    private static final class Local {
+        final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+        final Sketch lines;
+        final Sketch chars;
+
+        Local(int capacity) {
+            lines = new Sketch(capacity);
+            chars = new Sketch(capacity);
+        }
+    }
+
+    /*
+     * Space-Saving summary of at most capacity statements
+     */
+    private static final class Sketch {
+        private final LogSite[] sites_;
+        private final long[] counts_;
+        private final long[] errors_;
+        private int size_;
+        // the minimum count found by the last scan, counts never go below it
+        private long floor_;
+        private int cursor_;
+        // slot + 1 of each site by identity hash, linear probing, 0 if free
+        private final int[] index_;
+
+        Sketch(int capacity) {
+            capacity = Math.max(1, capacity);
+            sites_ = new LogSite[capacity];
+            counts_ = new long[capacity];
+            errors_ = new long[capacity];
+            index_ = new int[Integer.highestOneBit(capacity) << 2];
+        }
+
+        synchronized void add(LogSite site, long weight) {
+            int mask = index_.length - 1;
+            int h = System.identityHashCode(site) & mask;
+            while (0 != index_[h]) {
+                int slot = index_[h] - 1;
+                if (sites_[slot] == site) {
+                    counts_[slot] += weight;
+                    return;
+                }
+                h = (h + 1) & mask;
+            }
+            if (size_ < sites_.length) {
+                int slot = size_++;
+                sites_[slot] = site;
+                counts_[slot] = weight;
+                errors_[slot] = 0;
+                index_[h] = slot + 1;
+                return;
+            }
+            int min = min_();
+            long count = counts_[min];
+            unindex_(sites_[min]);
+            sites_[min] = site;
+            counts_[min] = count + weight;
+            errors_[min] = count;
+            h = System.identityHashCode(site) & mask;
+            while (0 != index_[h])
+                h = (h + 1) & mask;
+            index_[h] = min + 1;
+        }
+
+        /*
+         * The slot of the smallest count, the scan stops at the first count
+         * as small as the minimum found last time
+         */
+        private int min_() {
+            int min = cursor_;
+            for (int n = 0, i = cursor_; n < size_; ++n, i = (i + 1 == size_ ? 0 : i + 1)) {
+                if (counts_[i] <= floor_) {
+                    min = i;
+                    break;
+                }
+                if (counts_[i] < counts_[min])
+                    min = i;
+            }
+            floor_ = counts_[min];
+            cursor_ = min + 1 == size_ ? 0 : min + 1;
+            return min;
+        }
+
+        /*
+         * Remove a site from the index, moving back the entries probed after
+         * it so that no lookup stops early
+         */
+        private void unindex_(LogSite site) {
+            int mask = index_.length - 1;
+            int free = System.identityHashCode(site) & mask;
+            while (sites_[index_[free] - 1] != site)
+                free = (free + 1) & mask;
+            for (int j = (free + 1) & mask; 0 != index_[j]; j = (j + 1) & mask) {
+                int home = System.identityHashCode(sites_[index_[j] - 1]) & mask;
+                // stays if its home is cyclically in (free, j]
+                boolean stays = free < j ? (home > free && home <= j) : (home > free || home <= j);
+                if (!stays) {
+                    index_[free] = index_[j];
+                    free = j;
+                }
+            }
+            index_[free] = 0;
+        }
+
+        /*
+         * Add the counters to the merged ones, and reset them if drain
+         */
+        synchronized void mergeTo(Map<LogSite, long[]> merged, boolean drain) {
+            for (int i = 0; i < size_; ++i) {
+                long[] c = merged.get(sites_[i]);
+                if (null == c) {
+                    c = new long[2];
+                    merged.put(sites_[i], c);
+                }
+                c[0] += counts_[i];
+                c[1] += errors_[i];
+            }
+            if (drain) {
+                Arrays.fill(sites_, null);
+                Arrays.fill(index_, 0);
+                size_ = 0;
+                floor_ = 0;
+                cursor_ = 0;
+            }
+        }
+    }
+
+    /**
+     * A log statement and its estimated count
+     */
+    public static final class Entry {
+        public final LogSite site;
+        /**
+         * lines or characters, overestimated by at most error
+         */
+        public final long count;
+        public final long error;
+
+        Entry(LogSite site, long count, long error) {
+            this.site = site;
+            this.count = count;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s:%s %s.%s() %s%s", count, site.fileName, site.line, site.clazz,
+                    site.method, LogSite.levelName(site.level), 0 == error ? "" : " (over by at most " + error + ")");
+        }
+    }
+
+    /**
+     * Called by the log statements once a line is written, with the
+     * characters of the message, 0 if it is not formatted
+     */
+    static void record(LogSite site, int chars) {
+        Local local = local_.get();
+        local.lines.add(site, 1);
+        if (chars > 0)
+            local.chars.add(site, chars);
+    }
+
+    /**
+     * The log statements which have written the most lines since the last
+     * report
+     */
+    public static List<Entry> topLines(int n) {
+        return top_(false, n, false);
+    }
+
+    /**
+     * The log statements which have written the most characters since the
+     * last report
+     */
+    public static List<Entry> topChars(int n) {
+        return top_(true, n, false);
+    }
+
+    private static List<Entry> top_(boolean chars, int n, boolean drain) {
+        Map<LogSite, long[]> merged = new IdentityHashMap<LogSite, long[]>();
+        for (Iterator<Local> it = locals_.iterator(); it.hasNext();) {
+            Local local = it.next();
+            (chars ? local.chars : local.lines).mergeTo(merged, drain);
+            if (drain && !chars && null == local.owner.get())
+                it.remove(); // the chars have been drained first
+        }
+        List<Entry> entries = new ArrayList<Entry>(merged.size());
+        for (Map.Entry<LogSite, long[]> e : merged.entrySet())
+            entries.add(new Entry(e.getKey(), e.getValue()[0], e.getValue()[1]));
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry e1, Entry e2) {
+                return e1.count > e2.count ? -1 : (e1.count == e2.count ? 0 : 1);
+            }
+        });
+        return entries.size() > n ? new ArrayList<Entry>(entries.subList(0, n)) : entries;
+    }
+
+    /**
+     * The ranked report of the top n statements by lines and by characters
+     *
+     * @param drain whether to start counting again afterwards
+     */
+    static String report(int n, boolean drain) {
+        List<Entry> chars = top_(true, n, drain);
+        List<Entry> lines = top_(false, n, drain);
+        if (lines.isEmpty())
+            return null;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%nby lines:"));
+        for (int i = 0; i < lines.size(); ++i)
+            sb.append(String.format("%n  %2s. %s", i + 1, lines.get(i)));
+        if (!chars.isEmpty()) {
+            sb.append(String.format("%nby characters:"));
+            for (int i = 0; i < chars.size(); ++i)
+                sb.append(String.format("%n  %2s. %s", i + 1, chars.get(i)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Start recording, and log the report of the top statements every
+     * interval seconds (never if 0)
+     */
+    static synchronized void start(int capacity, int interval, int top) {
+        stop();
+        HeavyHitters.capacity = capacity;
+        interval_ = interval;
+        top_ = top;
+        enabled = true;
+        if (interval <= 0)
+            return;
+        timer_ = new Timer("betterlogs-heavy-hitters", true);
+        timer_.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                log_();
+            }
+        }, interval * 1000L, interval * 1000L);
+    }
+
+    static synchronized void stop() {
+        enabled = false;
+        if (null != timer_) {
+            timer_.cancel();
+            timer_ = null;
+        }
+    }
+
+    private static void log_() {
+        try {
+            String report = report(top_, true);
+            if (null != report)
+                Logger.info("[BL] noisiest log statements in the last %ss:%s", interval_, report);
+        } catch (Throwable t) {
+            // never let the timer die
+        }
+    }
+
+    /**
+     * Heavy hitters summary for the plugin status
+     */
+    static String status() {
+        List<Entry> top = topLines(1);
+        return String.format("Heavy hitters: %s threads, %s counters each, report every %s%s", locals_.size(),
+                capacity, interval_ > 0 ? interval_ + "s" : "never",
+                top.isEmpty() ? "" : ", top: " + top.get(0));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Write to the <code>java.util.logging</code> logger <code>play.Logger</code>
+ * would use, without going through it
+ */
+class JulLogBackend extends LogBackend {
+
+    static final Level[] LEVELS = { Level.FINEST, Level.FINE, Level.INFO, Level.WARNING, Level.SEVERE,
+            Level.SEVERE };
+
+    @Override
+    public Object bind(LogSite site) {
+        return logger_();
+    }
+
+    private static Logger logger_() {
+        return null == play.Logger.juli ? Logger.getLogger("play") : play.Logger.juli;
+    }
+
+    @Override
+    public boolean isEnabled(Object logger, int level) {
+        return ((Logger) logger).isLoggable(LEVELS[level]);
+    }
+
+    @Override
+    public void write(Object logger, LogSite site, long timestamp, String threadName, long threadId,
+            Throwable throwable, String message) {
+        Logger l = (Logger) logger;
+        LogRecord record = new LogRecord(LEVELS[site.level], message);
+        record.setMillis(timestamp);
+        record.setThreadID((int) threadId);
+        record.setThrown(throwable);
+        record.setLoggerName(l.getName());
+        // known already, saves the stack walk java.util.logging would do to infer them
+        record.setSourceClassName(site.clazz);
+        record.setSourceMethodName(site.method);
+        l.log(record);
+    }
+
+    @Override
+    public int threshold() {
+        Logger logger = logger_();
+        int level = LogSite.TRACE;
+        while (level <= LogSite.FATAL && !logger.isLoggable(LEVELS[level]))
+            level++;
+        return level;
+    }
+}
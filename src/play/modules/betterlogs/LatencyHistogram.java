@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed memory latency histogram with log scaled buckets.
+ *
+ * <p>Each power of 2 nanoseconds is split into 8 buckets, so a percentile is
+ * known with an error lower than 12.5%. Durations longer than 2^36ns (about
+ * 68 seconds) are counted in the last bucket, the max is always exact.
+ * Recording is lock free and could happen concurrently with reading.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXP = 36;
+    private static final int BUCKETS = (MAX_EXP - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts_ = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count_ = new AtomicLong();
+    private final AtomicLong total_ = new AtomicLong();
+    private final AtomicLong max_ = new AtomicLong();
+
+    static int index(long nanos) {
+        if (nanos < SUB_COUNT)
+            return nanos < 0 ? 0 : (int) nanos;
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exp >= MAX_EXP)
+            return BUCKETS - 1;
+        int sub = (int) (nanos >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /*
+     * The highest value counted in the bucket
+     */
+    static long upperBound(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int exp = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    public void record(long nanos) {
+        counts_.incrementAndGet(index(nanos));
+        count_.incrementAndGet();
+        total_.addAndGet(nanos);
+        long max = max_.get();
+        while (nanos > max && !max_.compareAndSet(max, nanos))
+            max = max_.get();
+    }
+
+    public long count() {
+        return count_.get();
+    }
+
+    public long totalNanos() {
+        return total_.get();
+    }
+
+    public long maxNanos() {
+        return max_.get();
+    }
+
+    /**
+     * The duration in nanoseconds below which the fraction of the recorded
+     * durations specified are found, e.g. <code>percentile(0.99)</code>
+     */
+    public long percentile(double fraction) {
+        long count = count_.get();
+        if (0 == count)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts_.get(i);
+            if (seen >= rank)
+                return Math.min(upperBound(i), max_.get());
+        }
+        return max_.get();
+    }
+
+    /*
+     * Add the durations recorded here to the histogram specified
+     */
+    void addTo(LatencyHistogram target) {
+        for (int i = 0; i < BUCKETS; ++i) {
+            long n = counts_.get(i);
+            if (0 != n)
+                target.counts_.addAndGet(i, n);
+        }
+        target.add_(count_.get(), total_.get(), max_.get());
+    }
+
+    /*
+     * Move the durations recorded here to the histogram specified, a
+     * duration recorded concurrently is either moved or left for the next
+     * call, never lost
+     */
+    void drainTo(LatencyHistogram target) {
+        for (int i = 0; i < BUCKETS; ++i) {
+            if (0 == counts_.get(i))
+                continue;
+            long n = counts_.getAndSet(i, 0);
+            if (0 != n)
+                target.counts_.addAndGet(i, n);
+        }
+        target.add_(count_.getAndSet(0), total_.getAndSet(0), max_.getAndSet(0));
+    }
+
+    private void add_(long count, long total, long max) {
+        count_.addAndGet(count);
+        total_.addAndGet(total);
+        long m = max_.get();
+        while (max > m && !max_.compareAndSet(m, max))
+            m = max_.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; ++i)
+            counts_.set(i, 0);
+        count_.set(0);
+        total_.set(0);
+        max_.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%s p50=%sms p90=%sms p99=%sms max=%sms", count(),
+                TimeTracker.millis(percentile(0.5)), TimeTracker.millis(percentile(0.9)),
+                TimeTracker.millis(percentile(0.99)), TimeTracker.millis(maxNanos()));
+    }
+}
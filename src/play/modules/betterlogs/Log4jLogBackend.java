@@ -0,0 +1,75 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+/**
+ * Write to the log4j logger <code>play.Logger</code> would use, without going
+ * through it
+ */
+class Log4jLogBackend extends LogBackend {
+
+    private static final String FQCN = LogSite.class.getName();
+
+    static final Level[] LEVELS = { Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN, Level.ERROR,
+            Level.FATAL };
+
+    @Override
+    public Object bind(LogSite site) {
+        if (play.Logger.recordCaller)
+            return Logger.getLogger(site.clazz);
+        return null == play.Logger.log4j ? Logger.getLogger("play") : play.Logger.log4j;
+    }
+
+    @Override
+    public boolean isEnabled(Object logger, int level) {
+        return ((Logger) logger).isEnabledFor(LEVELS[level]);
+    }
+
+    @Override
+    public void write(Object logger, LogSite site, long timestamp, String threadName, long threadId,
+            Throwable throwable, String message) {
+        Logger l = (Logger) logger;
+        ThrowableInformation ti = null == throwable ? null : new ThrowableInformation(throwable);
+        l.callAppenders(new LoggingEvent(FQCN, l, timestamp, LEVELS[site.level], message, threadName, ti,
+                null, null, null));
+    }
+
+    /**
+     * The logger: log4j locks each logger of the hierarchy in turn, from the
+     * one of the event up, while calling its appenders. None with one logger
+     * per class, two batches could then lock each other's loggers
+     */
+    @Override
+    public Object batchLock(Object logger) {
+        return play.Logger.recordCaller ? null : logger;
+    }
+
+    @Override
+    public int threshold() {
+        if (play.Logger.recordCaller)
+            return LogSite.TRACE; // one logger per class, levels might differ
+        Logger logger = null == play.Logger.log4j ? Logger.getLogger("play") : play.Logger.log4j;
+        int level = LogSite.TRACE;
+        while (level <= LogSite.FATAL && !logger.isEnabledFor(LEVELS[level]))
+            level++;
+        return level;
+    }
+}
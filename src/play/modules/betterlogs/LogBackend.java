@@ -0,0 +1,162 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+/**
+ * Where the rewritten log calls are written.
+ *
+ * <p>Each {@link LogSite} binds once to the logger returned by
+ * {@link #bind(LogSite)} and hands it back with each call, so that the
+ * backend does not need to look it up again. The built-in backends are
+ * selected with <code>betterlogs.backend</code>:
+ * <ul>
+ * <li>play: through <code>play.Logger</code>, the default</li>
+ * <li>log4j: directly to the log4j logger used by <code>play.Logger</code></li>
+ * <li>jul: directly to the <code>java.util.logging</code> logger used by <code>play.Logger</code></li>
+ * <li>binary: to a compact binary file, see {@link BinaryLogBackend}</li>
+ * <li>mmap: to memory-mapped files, see {@link MappedLogBackend}</li>
+ * <li>noop: nothing is written</li>
+ * </ul>
+ * Any other value is the class name of a <code>LogBackend</code> with a public
+ * no-arg constructor.
+ */
+public abstract class LogBackend {
+
+    private static volatile LogBackend current_ = new PlayLogBackend();
+
+    /**
+     * The logger to be used by the call site specified, called once per site
+     * and backend
+     */
+    public abstract Object bind(LogSite site);
+
+    /**
+     * Whether the level specified is enabled for a logger returned by {@link #bind(LogSite)}
+     */
+    public abstract boolean isEnabled(Object logger, int level);
+
+    /**
+     * Write a message already rendered. Might be called on another thread
+     * than the one of the log call, e.g. when logging asynchronously
+     */
+    public abstract void write(Object logger, LogSite site, long timestamp, String threadName,
+            long threadId, Throwable throwable, String message);
+
+    /**
+     * Log a call happening now on the current thread. Called only if the
+     * level of the site is enabled, with the message already rendered
+     */
+    public void log(Object logger, LogSite site, Throwable throwable, String message) {
+        Thread thread = Thread.currentThread();
+        write(logger, site, System.currentTimeMillis(), thread.getName(), thread.getId(), throwable, message);
+    }
+
+    /**
+     * Whether the backend writes the pattern and the arguments of the log
+     * calls with {@link #writeRaw} instead of the messages rendered
+     */
+    public boolean raw() {
+        return false;
+    }
+
+    /**
+     * Write a log call without rendering it, called instead of
+     * {@link #write} and {@link #log} if {@link #raw()}. The first argc
+     * arguments are the ones of the call, they are left as they are: the
+     * array must not be kept after the call. Rendered as the other log calls
+     * and written with {@link #write} by default
+     */
+    public void writeRaw(Object logger, LogSite site, long timestamp, String threadName,
+            long threadId, Throwable throwable, String pattern, Object[] args, int argc) {
+        LogSite.Prefix prefix = site.prefix();
+        write(logger, site, timestamp, threadName, threadId, throwable, LogSite.message(prefix.format,
+                prefix.threadSlots, prefix.formatAlways, threadId, pattern, args, argc));
+    }
+
+    /**
+     * The monitor held while a batch of events is written to the logger
+     * specified, see {@link RequestBuffer}: the writes of the other threads
+     * wait for the end of the batch, and the writes of the batch do not
+     * contend with them. Null if the backend has none, the batches are then
+     * only serialized with each other
+     */
+    public Object batchLock(Object logger) {
+        return null;
+    }
+
+    /**
+     * Write what is buffered
+     */
+    public void flush() {
+    }
+
+    /**
+     * Write what is buffered and release the files, threads... of the
+     * backend, called once it is replaced or when the application stops. A
+     * log call still running on another thread might be written afterwards,
+     * it must then be dropped without failing
+     */
+    public void close() {
+        flush();
+    }
+
+    /**
+     * The lowest level enabled, {@link LogSite#FATAL} + 1 if none. Log calls
+     * below this level are skipped by enhanced code without evaluating their
+     * arguments
+     */
+    public int threshold() {
+        return LogSite.TRACE;
+    }
+
+    static LogBackend current() {
+        return current_;
+    }
+
+    /**
+     * Replace the current backend, which is closed
+     */
+    static void set(LogBackend backend) {
+        LogBackend previous = current_;
+        current_ = backend;
+        LogSite.refreshLevels();
+        if (previous != backend)
+            previous.close();
+    }
+
+    /**
+     * The built-in backend of the name specified, or a new instance of the
+     * class specified
+     */
+    static LogBackend forName(String name) throws Exception {
+        if ("play".equals(name))
+            return new PlayLogBackend();
+        if ("log4j".equals(name))
+            return new Log4jLogBackend();
+        if ("jul".equals(name))
+            return new JulLogBackend();
+        if ("binary".equals(name))
+            return new BinaryLogBackend();
+        if ("mmap".equals(name))
+            return new MappedLogBackend();
+        if ("noop".equals(name))
+            return new NoopLogBackend();
+        ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        if (null == cl)
+            cl = LogBackend.class.getClassLoader();
+        return (LogBackend) Class.forName(name, true, cl).newInstance();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Formattable;
+
+/**
+ * A log call captured on the calling thread, to be written later. Instances
+ * are preallocated and reused.
+ */
+final class LogEvent {
+
+    LogSite site;
+    long timestamp;
+    long threadId;
+    String threadName;
+    Throwable throwable;
+    String pattern;
+    Object[] args = new Object[8];
+    int argc;
+
+    /**
+     * Capture a log call on the calling thread
+     */
+    void set(LogSite site, Throwable throwable, String pattern, Object[] args) {
+        Thread thread = Thread.currentThread();
+        this.site = site;
+        this.timestamp = System.currentTimeMillis();
+        this.threadId = thread.getId();
+        this.threadName = thread.getName();
+        this.throwable = throwable;
+        this.pattern = pattern;
+        if (null == args) {
+            // Logger.xxx("...", (Object[])null)
+            argc = 1;
+            this.args[0] = null;
+        } else {
+            argc = args.length;
+            if (this.args.length < argc)
+                this.args = new Object[argc];
+            for (int i = 0; i < argc; ++i)
+                this.args[i] = snapshot_(args[i]);
+        }
+    }
+
+    void clear() {
+        site = null;
+        threadName = null;
+        throwable = null;
+        pattern = null;
+        Arrays.fill(args, 0, argc, null);
+        argc = 0;
+    }
+
+    /*
+     * The event is rendered on another thread, later: keep the value of
+     * mutable arguments as it is when the log call happens. Immutable values
+     * are kept as they are, dates copied, so that the conversions of the
+     * pattern (%d, %tH...) still apply, and the other objects rendered now
+     */
+    private static Object snapshot_(Object o) {
+        if (null == o || o instanceof String || o instanceof Integer || o instanceof Long
+                || o instanceof Boolean || o instanceof Character || o instanceof Double
+                || o instanceof Float || o instanceof Short || o instanceof Byte
+                || o instanceof Enum<?> || o.getClass() == BigInteger.class
+                || o.getClass() == BigDecimal.class)
+            return o;
+        try {
+            if (o instanceof Date)
+                return ((Date) o).clone();
+            if (o instanceof Calendar)
+                return ((Calendar) o).clone();
+            if (o instanceof Formattable)
+                return String.format("%s", o);
+            return String.valueOf(o);
+        } catch (RuntimeException e) {
+            return o; // play.Logger falls back to the raw pattern when rendering fails
+        }
+    }
+}
@@ -0,0 +1,556 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Precompiled descriptor of one rewritten <code>play.Logger</code> call.
+ *
+ * <p>{@link BetterLogsEnhancer} stores one instance per log statement in a
+ * <code>static final</code> field of the enhanced class. All the constant
+ * parts of the prefix (class, file, line, method, signature) are rendered
+ * once, only <code>%thread</code> is left as a slot to be filled at runtime.
+ */
+public final class LogSite {
+
+    public static final int TRACE = 0;
+    public static final int DEBUG = 1;
+    public static final int INFO = 2;
+    public static final int WARN = 3;
+    public static final int ERROR = 4;
+    public static final int FATAL = 5;
+
+    // used to make play.Logger run String.format even if there is no argument at all
+    private static final Object[] FORMAT_ONLY = new Object[1];
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final String THREAD_SLOT = "\u0000";
+
+    public final int level;
+    public final String clazz;
+    public final String clazzSimpleName;
+    public final String packageName;
+    public final String method;
+    public final String signature;
+    public final String fileName;
+    public final String relativeFileName;
+    public final int line;
+
+    private Prefix prefix_;
+    private volatile Binding binding_;
+    // compiled from the first pattern logged, see template_()
+    private volatile MessageTemplate template_;
+
+    // lowest level enabled in the backend, see refreshLevels()
+    private static volatile int threshold_ = TRACE;
+
+    /**
+     * Whether the lines and characters written are counted per site, see
+     * {@link #counted()}
+     */
+    static volatile boolean counting = false;
+    private static final int LINES = 0;
+    private static final int CHARS = 1;
+    private volatile StripedCounter counter_;
+    // the first site counted of each statement, by class, method, line and level
+    private static final Map<String, LogSite> counted_ = new LinkedHashMap<String, LogSite>();
+    // the last messages logged, see RepeatFilter
+    private volatile AtomicReferenceArray<RepeatFilter.Repeat> repeats_;
+
+    public LogSite(String level, String clazz, String clazzSimpleName,
+            String packageName, String method, String signature,
+            String fileName, String relativeFileName, int line) {
+        this.level = toLevel(level);
+        this.clazz = clazz;
+        this.clazzSimpleName = clazzSimpleName;
+        this.packageName = packageName;
+        this.method = method;
+        this.signature = signature;
+        this.fileName = fileName;
+        this.relativeFileName = relativeFileName;
+        this.line = line;
+        if (null != BetterLogsPlugin.argsPrefix)
+            prefix_ = render_();
+    }
+
+    /**
+     * The prefix rendered for this call site. Immutable so that it could be
+     * published to other threads without synchronization
+     */
+    static final class Prefix {
+        final String format;
+        final int threadSlots;
+        final boolean formatAlways;
+
+        Prefix(String format, int threadSlots, boolean formatAlways) {
+            this.format = format;
+            this.threadSlots = threadSlots;
+            this.formatAlways = formatAlways;
+        }
+    }
+
+    /**
+     * The logger the site is bound to, for a given backend
+     */
+    private static final class Binding {
+        final LogBackend backend;
+        final Object logger;
+
+        Binding(LogBackend backend, Object logger) {
+            this.backend = backend;
+            this.logger = logger;
+        }
+    }
+
+    private Binding binding_() {
+        LogBackend backend = LogBackend.current();
+        Binding binding = binding_;
+        if (null == binding || binding.backend != backend) {
+            binding = new Binding(backend, backend.bind(this));
+            binding_ = binding;
+        }
+        return binding;
+    }
+
+    private Prefix render_() {
+        java.util.List<String> argsPrefix = BetterLogsPlugin.argsPrefix;
+        Object[] values = new Object[argsPrefix.size()];
+        int threadSlots = 0;
+        for (int i = 0; i < values.length; ++i) {
+            String argName = argsPrefix.get(i);
+            if ("thread".equals(argName)) {
+                values[i] = THREAD_SLOT;
+                threadSlots++;
+            } else {
+                values[i] = value_(argName);
+            }
+        }
+        // the rendered prefix is a format string again: escape it and restore the thread slots
+        String format = String.format(BetterLogsPlugin.stringFormatPrefix, values)
+                .replace("%", "%%").replace(THREAD_SLOT, "%s");
+        return new Prefix(format, threadSlots, values.length > 0);
+    }
+
+    private Object value_(String argName) {
+        if ("class".equals(argName))
+            return clazz;
+        if ("simpleClass".equals(argName))
+            return clazzSimpleName;
+        if ("package".equals(argName))
+            return packageName;
+        if ("method".equals(argName))
+            return method;
+        if ("file".equals(argName))
+            return fileName;
+        if ("line".equals(argName))
+            return line;
+        if ("relativeFile".equals(argName))
+            return relativeFileName;
+        if ("signature".equals(argName))
+            return signature;
+        return null;
+    }
+
+    /**
+     * Called by enhanced code in place of <code>play.Logger.xxx(String, Object...)</code>
+     */
+    public void log(String pattern, Object[] args) {
+        log(null, pattern, args);
+    }
+
+    /**
+     * Called by enhanced code in place of <code>play.Logger.xxx(Throwable, String, Object...)</code>
+     */
+    public void log(Throwable throwable, String pattern, Object[] args) {
+        // before counting the message or the stack trace as seen
+        if (!enabled_())
+            return;
+        if (0 != RepeatFilter.window && level >= RepeatFilter.level
+                && RepeatFilter.suppress(this, throwable, pattern, args))
+            return;
+        if (null != throwable && StackFingerprints.enabled) {
+            fingerprinted_(throwable, pattern, args);
+            return;
+        }
+        log_(throwable, pattern, args);
+    }
+
+    /*
+     * Write the stack trace the first time it is seen, with its id appended
+     * to the message. Afterwards, append the id, the count and the throwable
+     * as a string instead. The arguments appended are referenced by index,
+     * after the thread slots of the prefix, so that they do not shift the
+     * ones of the pattern. A pattern logged without arguments is written
+     * verbatim by play.Logger: it is escaped, being formatted now
+     */
+    private void fingerprinted_(Throwable throwable, String pattern, Object[] args) {
+        Prefix prefix = prefix_();
+        if (null == prefix) return; // not initialized yet
+        StackFingerprints.Seen seen = StackFingerprints.seen(throwable);
+        if (null == args || 0 == args.length) {
+            if (null != pattern)
+                pattern = pattern.replace("%", "%%");
+            args = NO_ARGS;
+        }
+        int n = args.length, i = prefix.threadSlots + n;
+        Object[] a;
+        if (1 == seen.count) {
+            a = new Object[n + 1];
+            System.arraycopy(args, 0, a, 0, n);
+            a[n] = seen.id;
+            log_(throwable, pattern + " [stack %" + (i + 1) + "$s]", a);
+        } else {
+            a = new Object[n + 3];
+            System.arraycopy(args, 0, a, 0, n);
+            a[n] = seen.id;
+            a[n + 1] = seen.count;
+            a[n + 2] = throwable;
+            log_(null, pattern + " [stack %" + (i + 1) + "$s seen %" + (i + 2) + "$s times] %" + (i + 3) + "$s", a);
+        }
+    }
+
+    /*
+     * Whether the level of the site is enabled for its logger, which might
+     * have a level of its own
+     */
+    private boolean enabled_() {
+        if (!isEnabled(level) || null == prefix_())
+            return false; // or not initialized yet
+        Binding binding = binding_();
+        return binding.backend.isEnabled(binding.logger, level);
+    }
+
+    private void log_(Throwable throwable, String pattern, Object[] args) {
+        Prefix prefix = prefix_();
+        if (null == prefix) return; // not initialized yet
+        // before capturing the call: a logger might have a level of its own
+        Binding binding = binding_();
+        if (!binding.backend.isEnabled(binding.logger, level))
+            return;
+        if (RequestBuffer.enabled && RequestBuffer.buffer(this, throwable, pattern, args))
+            return;
+        AsyncLogger async = AsyncLogger.instance();
+        if (null != async) {
+            async.publish(this, throwable, pattern, args);
+            return;
+        }
+        if (binding.backend.raw()) {
+            Thread thread = Thread.currentThread();
+            if (null == args) args = FORMAT_ONLY; // Logger.xxx("...", (Object[])null)
+            binding.backend.writeRaw(binding.logger, this, System.currentTimeMillis(), thread.getName(),
+                    thread.getId(), throwable, pattern, args, args.length);
+            if (counting || HeavyHitters.enabled) written_(0);
+            return;
+        }
+        String message = message_(prefix, Thread.currentThread().getId(), pattern, args,
+                null == args ? 1 : args.length);
+        binding.backend.log(binding.logger, this, throwable, message);
+        if (counting || HeavyHitters.enabled) written_(message.length());
+    }
+
+    /**
+     * The last messages logged from this site, see {@link RepeatFilter}
+     */
+    AtomicReferenceArray<RepeatFilter.Repeat> repeats() {
+        AtomicReferenceArray<RepeatFilter.Repeat> repeats = repeats_;
+        if (null == repeats) {
+            synchronized (this) {
+                if (null == repeats_)
+                    repeats_ = new AtomicReferenceArray<RepeatFilter.Repeat>(RepeatFilter.SLOTS);
+                repeats = repeats_;
+            }
+        }
+        return repeats;
+    }
+
+    /**
+     * Write the summary of a message repeated n times, see {@link RepeatFilter}
+     */
+    void repeated(long n, long millis, String pattern, Object[] args) {
+        log_(null, "repeated " + n + " times in " + millis + "ms: " + pattern, args);
+    }
+
+    /*
+     * A line has been written from this site
+     */
+    private void written_(int chars) {
+        if (counting)
+            count_(chars);
+        if (HeavyHitters.enabled)
+            HeavyHitters.record(this, chars);
+    }
+
+    private void count_(int chars) {
+        StripedCounter counter = counter_;
+        if (null == counter)
+            counter = counter_();
+        counter.add(LINES, 1);
+        if (chars > 0)
+            counter.add(CHARS, chars);
+    }
+
+    /*
+     * The sites of a statement share its counter: several log calls on one
+     * line, the same class reloaded in dev mode
+     */
+    private StripedCounter counter_() {
+        synchronized (counted_) {
+            if (null == counter_) {
+                String key = clazz + "." + method + ":" + line + ":" + level;
+                LogSite first = counted_.get(key);
+                if (null == first) {
+                    counter_ = new StripedCounter(2);
+                    counted_.put(key, this);
+                } else {
+                    counter_ = first.counter_;
+                }
+            }
+            return counter_;
+        }
+    }
+
+    /**
+     * One site per statement (class, method, line and level) which has
+     * written at least one line since counting is on
+     */
+    static List<LogSite> counted() {
+        synchronized (counted_) {
+            return new ArrayList<LogSite>(counted_.values());
+        }
+    }
+
+    /**
+     * Number of lines written from this site, and from the others of the
+     * same statement
+     */
+    public long lines() {
+        StripedCounter counter = counter_;
+        return null == counter ? 0 : counter.sum(LINES);
+    }
+
+    /**
+     * Number of characters of the messages written from this site and the
+     * others of the same statement, prefix included. Not counted when the messages are not formatted (binary and
+     * mmap backends)
+     */
+    public long chars() {
+        StripedCounter counter = counter_;
+        return null == counter ? 0 : counter.sum(CHARS);
+    }
+
+    /**
+     * The prefix rendered for this site, null if the plugin is not
+     * configured yet
+     */
+    Prefix prefix() {
+        return prefix_();
+    }
+
+    private Prefix prefix_() {
+        Prefix prefix = prefix_;
+        if (null == prefix) {
+            if (null == BetterLogsPlugin.argsPrefix) return null;
+            prefix = render_();
+            prefix_ = prefix;
+        }
+        return prefix;
+    }
+
+    /**
+     * Render the message of an event captured from this site the same way
+     * <code>play.Logger</code> does
+     */
+    String render(LogEvent e) {
+        return message_(prefix_(), e.threadId, e.pattern, e.args, e.argc);
+    }
+
+    /**
+     * The logger of the current backend this site is bound to
+     */
+    Object logger() {
+        return binding_().logger;
+    }
+
+    /**
+     * Write an event captured from this site right away, e.g. logged by a
+     * toString() while an event is captured
+     */
+    void write(LogEvent e) {
+        write(e, null);
+    }
+
+    /**
+     * The message of an event captured from this site, null if it is not
+     * written or written raw by the backend
+     */
+    String prepare(LogEvent e) {
+        Binding binding = binding_();
+        if (!binding.backend.isEnabled(binding.logger, level) || binding.backend.raw())
+            return null;
+        return render(e);
+    }
+
+    /**
+     * Write an event captured from this site with the message returned by
+     * {@link #prepare(LogEvent)}, rendered now if null. Called by
+     * {@link RequestBuffer} and {@link AsyncLogger}, which render the
+     * messages of a batch before locking the backend
+     */
+    void write(LogEvent e, String message) {
+        Binding binding = binding_();
+        if (!binding.backend.isEnabled(binding.logger, level))
+            return;
+        if (binding.backend.raw()) {
+            binding.backend.writeRaw(binding.logger, this, e.timestamp, e.threadName, e.threadId,
+                    e.throwable, e.pattern, e.args, e.argc);
+            if (counting || HeavyHitters.enabled) written_(0);
+        } else {
+            if (null == message)
+                message = render(e);
+            binding.backend.write(binding.logger, this, e.timestamp, e.threadName, e.threadId,
+                    e.throwable, message);
+            if (counting || HeavyHitters.enabled) written_(message.length());
+        }
+    }
+
+    /*
+     * The message of a log call: the prefix and the pattern formatted with the
+     * thread id and the first argc arguments, as play.Logger would do with
+     * String.format
+     */
+    private String message_(Prefix prefix, long threadId, String pattern, Object[] args, int argc) {
+        if (null == args) args = FORMAT_ONLY; // Logger.xxx("...", (Object[])null)
+        if (0 == prefix.threadSlots + argc && !prefix.formatAlways)
+            return prefix.format + pattern; // not formatted at all
+        if (0 == argc) {
+            args = FORMAT_ONLY;
+            argc = 1;
+        }
+        MessageTemplate template = template_(prefix, pattern);
+        if (null != template) {
+            String message = template.render(threadId, prefix.threadSlots, args, argc);
+            if (null != message)
+                return message;
+        }
+        return format(prefix.format + pattern, args(prefix, threadId, args, argc));
+    }
+
+    /*
+     * The template of the pattern specified if it could be compiled. The
+     * pattern is a constant at almost every log statement: only the first one
+     * is compiled, the others are left to String.format
+     */
+    private MessageTemplate template_(Prefix prefix, String pattern) {
+        MessageTemplate template = template_;
+        if (null == template) {
+            if (null == pattern)
+                return null;
+            template = MessageTemplate.compile(pattern, prefix.format + pattern);
+            template_ = template;
+        } else if (template.pattern != pattern && !template.pattern.equals(pattern)) {
+            return null;
+        }
+        return template.supported ? template : null;
+    }
+
+    /**
+     * The message of a log call written by a raw backend, rendered the same
+     * way as {@link #log(Throwable, String, Object[])} does with String.format
+     */
+    static String message(String prefixFormat, int threadSlots, boolean formatAlways, long threadId,
+            String pattern, Object[] args, int argc) {
+        Prefix prefix = new Prefix(prefixFormat, threadSlots, formatAlways);
+        if (0 == threadSlots + argc && !formatAlways)
+            return prefixFormat + pattern;
+        if (0 == argc) {
+            args = FORMAT_ONLY;
+            argc = 1;
+        }
+        return format(prefixFormat + pattern, args(prefix, threadId, args, argc));
+    }
+
+    static String format(String pattern, Object[] args) {
+        try {
+            if (null != args && args.length > 0)
+                return String.format(pattern, args);
+            return pattern;
+        } catch (Exception e) {
+            return pattern;
+        }
+    }
+
+    /*
+     * The arguments of the prefix thread slots followed by the first argc
+     * arguments of the log call
+     */
+    private static Object[] args(Prefix prefix, long threadId, Object[] args, int argc) {
+        int slots = prefix.threadSlots;
+        if (null == args) args = FORMAT_ONLY; // Logger.xxx("...", (Object[])null)
+        if (0 == slots && argc == args.length) {
+            return (argc == 0 && prefix.formatAlways) ? FORMAT_ONLY : args;
+        }
+        Object[] a = new Object[slots + argc];
+        if (slots > 0) {
+            Long id = threadId;
+            for (int i = 0; i < slots; ++i)
+                a[i] = id;
+        }
+        System.arraycopy(args, 0, a, slots, argc);
+        return (a.length == 0 && prefix.formatAlways) ? FORMAT_ONLY : a;
+    }
+
+    /**
+     * Called by enhanced code before evaluating the arguments of a log call.
+     * Reads the level snapshot taken by {@link #refreshLevels()}
+     */
+    public static boolean isEnabled(int level) {
+        return level >= threshold_;
+    }
+
+    /**
+     * Take a new snapshot of the levels enabled in the backend, see
+     * {@link LogBackend#threshold()}. Must be called whenever the log level is
+     * changed at runtime
+     */
+    public static void refreshLevels() {
+        threshold_ = LogBackend.current().threshold();
+    }
+
+    static String levelName(int level) {
+        switch (level) {
+        case TRACE: return "trace";
+        case DEBUG: return "debug";
+        case INFO: return "info";
+        case WARN: return "warn";
+        case ERROR: return "error";
+        default: return "fatal";
+        }
+    }
+
+    static int toLevel(String level) {
+        if ("trace".equals(level)) return TRACE;
+        if ("debug".equals(level)) return DEBUG;
+        if ("info".equals(level)) return INFO;
+        if ("warn".equals(level)) return WARN;
+        if ("error".equals(level)) return ERROR;
+        if ("fatal".equals(level)) return FATAL;
+        throw new IllegalArgumentException("unknown log level: " + level);
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import play.Logger;
+import play.Play;
+
+/**
+ * Write the log lines to memory-mapped files, formatted as the default Play
+ * console appender does (<code>%d{ABSOLUTE} %-5p ~ %m%n</code>).
+ *
+ * <p>The lines go to segments of a fixed size: <code>&lt;file&gt;.1</code>,
+ * <code>&lt;file&gt;.2</code>... A thread claims the space of its line by
+ * adding its length to the position of the current segment, no lock is
+ * involved; the thread whose claim crosses the end of the segment rolls over
+ * to the next one, mapped in advance by a background thread once the current
+ * one is half full. The same thread
+ * forces the segments to disk on an interval, and truncates the segments
+ * rolled over to the length written once their last line is copied. When
+ * the backend is closed the current segment is truncated the same way and
+ * the one mapped in advance is deleted.
+ */
+class MappedLogBackend extends LogBackend {
+
+    private static final String[] LEVELS = { "TRACE", "DEBUG", "INFO ", "WARN ", "ERROR", "FATAL" };
+
+    /**
+     * A mapped file
+     */
+    private static final class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        // the next byte to claim, might be beyond the capacity
+        final AtomicInteger position = new AtomicInteger();
+        // the bytes copied so far
+        final AtomicInteger written = new AtomicInteger();
+        // the length of the segment once rolled over, -1 before
+        volatile int length = -1;
+
+        Segment(File file, int capacity) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(capacity);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                raf.close(); // the mapping stays valid
+            }
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Per thread buffers, to format and encode a line without allocating
+     */
+    private static final class Local {
+        final StringBuilder line = new StringBuilder(256);
+        ByteBuffer bytes = ByteBuffer.allocate(1024);
+        Segment segment;
+        // a view of the segment buffer with a position of its own
+        ByteBuffer view;
+        long lastTimestamp = -1;
+        String lastDate;
+        final SimpleDateFormat dateFormat;
+        final Date date = new Date();
+
+        Local(String dateFormat) {
+            this.dateFormat = new SimpleDateFormat(dateFormat);
+        }
+    }
+
+    private final PlayLogBackend levels_ = new PlayLogBackend();
+    private final String path_;
+    private final int segmentSize_;
+    private final String dateFormat_;
+    private final AtomicInteger index_ = new AtomicInteger();
+    private volatile Segment current_;
+    // mapped in advance
+    private final AtomicReference<Segment> next_ = new AtomicReference<Segment>();
+    // rolled over, to be truncated once written
+    private final ConcurrentLinkedQueue<Segment> retired_ = new ConcurrentLinkedQueue<Segment>();
+    private final Object rollLock_ = new Object();
+    private final Timer timer_;
+    private volatile boolean failed_ = false;
+    private volatile boolean closed_ = false;
+
+    private final ThreadLocal<Local> local_ = new ThreadLocal<Local>() {
+        @Override
+        protected Local initialValue() {
+            return new Local(dateFormat_);
+        }
+    };
+
+    /**
+     * The file, segment size, date format and force interval are read from
+     * the configuration, see {@link BetterLogsPlugin#CONF_MMAP_FILE}
+     */
+    public MappedLogBackend() throws IOException {
+        this(new File(Play.applicationPath, Play.configuration.getProperty(BetterLogsPlugin.CONF_MMAP_FILE,
+                "logs/betterlogs.log")).getPath(),
+                BetterLogsPlugin.intConf(BetterLogsPlugin.CONF_MMAP_SEGMENT_SIZE, 64 * 1024 * 1024),
+                Play.configuration.getProperty(BetterLogsPlugin.CONF_MMAP_DATE_FORMAT, "HH:mm:ss,SSS"),
+                BetterLogsPlugin.intConf(BetterLogsPlugin.CONF_MMAP_FORCE_INTERVAL, 1000));
+    }
+
+    MappedLogBackend(String path, int segmentSize, String dateFormat, final int forceInterval) throws IOException {
+        path_ = path;
+        segmentSize_ = Math.max(4096, segmentSize);
+        dateFormat_ = dateFormat;
+        new SimpleDateFormat(dateFormat); // fail now if invalid
+        File dir = new File(path).getAbsoluteFile().getParentFile();
+        if (null != dir)
+            dir.mkdirs();
+        index_.set(lastIndex_());
+        current_ = segment_();
+        timer_ = new Timer("betterlogs-mmap", true);
+        timer_.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                housekeeping_(forceInterval > 0);
+            }
+        }, 0, forceInterval > 0 ? forceInterval : 1000);
+    }
+
+    /*
+     * The highest index of the segments already there, the new ones follow
+     */
+    private int lastIndex_() {
+        File file = new File(path_).getAbsoluteFile();
+        String prefix = file.getName() + ".";
+        String[] names = file.getParentFile().list();
+        int last = 0;
+        if (null != names) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        last = Math.max(last, Integer.parseInt(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // not a segment
+                    }
+                }
+            }
+        }
+        return last;
+    }
+
+    private Segment segment_() throws IOException {
+        return new Segment(new File(path_ + "." + index_.incrementAndGet()), segmentSize_);
+    }
+
+    @Override
+    public Object bind(LogSite site) {
+        return null;
+    }
+
+    @Override
+    public boolean isEnabled(Object logger, int level) {
+        return levels_.isEnabled(logger, level);
+    }
+
+    @Override
+    public int threshold() {
+        return levels_.threshold();
+    }
+
+    @Override
+    public void write(Object logger, LogSite site, long timestamp, String threadName, long threadId,
+            Throwable throwable, String message) {
+        Local local = local_.get();
+        StringBuilder line = local.line;
+        line.setLength(0);
+        if (timestamp != local.lastTimestamp) {
+            local.date.setTime(timestamp);
+            local.lastDate = local.dateFormat.format(local.date);
+            local.lastTimestamp = timestamp;
+        }
+        line.append(local.lastDate).append(' ').append(LEVELS[site.level]).append(" ~ ").append(message)
+                .append('\n');
+        if (null != throwable)
+            line.append(BinaryLogBackend.stackTrace(throwable));
+        ByteBuffer bytes = local.bytes;
+        if (bytes.capacity() < 3 * line.length()) {
+            bytes = ByteBuffer.allocate(3 * line.length());
+            if (line.length() < 16384)
+                local.bytes = bytes; // keep it unless huge
+        }
+        bytes.clear();
+        BinaryLogBackend.utf8(line, bytes);
+        bytes.flip();
+        if (line.capacity() > 16384) {
+            line.setLength(256);
+            line.trimToSize();
+        }
+        append_(local, bytes);
+    }
+
+    private void append_(Local local, ByteBuffer bytes) {
+        int length = Math.min(bytes.remaining(), segmentSize_);
+        bytes.limit(bytes.position() + length);
+        while (true) {
+            Segment segment = current_;
+            if (null == segment)
+                return; // could not map a segment
+            int position = segment.position.getAndAdd(length);
+            if (position + length <= segment.capacity) {
+                if (local.segment != segment) {
+                    local.segment = segment;
+                    local.view = segment.buffer.duplicate();
+                }
+                local.view.position(position);
+                local.view.put(bytes);
+                segment.written.addAndGet(length);
+                return;
+            }
+            if (position <= segment.capacity) {
+                // the first claim beyond the end
+                roll_(segment, position);
+            } else {
+                while (current_ == segment)
+                    Thread.yield();
+            }
+        }
+    }
+
+    private void roll_(Segment segment, int length) {
+        synchronized (rollLock_) {
+            segment.length = length;
+            if (closed_)
+                return; // the segment is truncated by close()
+            Segment next = next_.getAndSet(null);
+            try {
+                if (null == next)
+                    next = segment_();
+            } catch (IOException e) {
+                failed_(e);
+            }
+            retired_.add(segment);
+            current_ = next;
+        }
+    }
+
+    /*
+     * Map the next segment in advance, force the current one to disk, and
+     * truncate the segments rolled over
+     */
+    private synchronized void housekeeping_(boolean force) {
+        if (closed_)
+            return;
+        Segment segment = current_;
+        try {
+            // mapped once the current one is half full, not to leave an empty segment behind
+            if (null == next_.get() && null != segment && segment.position.get() > segment.capacity / 2)
+                next_.compareAndSet(null, segment_());
+        } catch (IOException e) {
+            failed_(e);
+        }
+        if (null == current_) {
+            synchronized (rollLock_) {
+                if (null == current_) // mapping failed when rolling over, try again
+                    current_ = next_.getAndSet(null);
+            }
+        }
+        segment = current_;
+        if (force && null != segment)
+            segment.buffer.force();
+        truncate_();
+    }
+
+    /*
+     * Truncate the segments rolled over whose lines are all copied
+     */
+    private void truncate_() {
+        for (Iterator<Segment> it = retired_.iterator(); it.hasNext();) {
+            Segment retired = it.next();
+            if (retired.written.get() < retired.length)
+                continue; // lines still being copied
+            it.remove();
+            retired.buffer.force();
+            try {
+                RandomAccessFile raf = new RandomAccessFile(retired.file, "rw");
+                try {
+                    raf.setLength(retired.length);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                // e.g. on Windows while mapped: the end of the file is left blank
+            }
+        }
+    }
+
+    private void failed_(IOException e) {
+        if (!failed_) {
+            failed_ = true;
+            Logger.error(e, "BetterLogs: cannot map the log file %s", path_);
+        }
+    }
+
+    @Override
+    public void flush() {
+        housekeeping_(true);
+    }
+
+    /**
+     * Stop the background thread, truncate the current segment to the
+     * length written and delete the one mapped in advance. The lines written
+     * afterwards are dropped
+     */
+    @Override
+    public synchronized void close() {
+        Segment segment;
+        Segment next;
+        synchronized (rollLock_) {
+            if (closed_)
+                return;
+            closed_ = true;
+            timer_.cancel();
+            segment = current_;
+            current_ = null;
+            next = next_.getAndSet(null);
+        }
+        if (null != segment) {
+            // no claim fits from now on, the ones before are copied within a few instructions
+            int end;
+            do {
+                end = segment.position.get();
+            } while (end <= segment.capacity && !segment.position.compareAndSet(end, segment.capacity + 1));
+            long deadline = System.currentTimeMillis() + 1000;
+            while (System.currentTimeMillis() < deadline && (end > segment.capacity
+                    ? segment.length < 0 || segment.written.get() < segment.length
+                    : segment.written.get() < end))
+                Thread.yield();
+            segment.length = segment.written.get();
+            if (0 == segment.length)
+                delete_(segment); // not to leave an empty file
+            else
+                retired_.add(segment);
+        }
+        truncate_();
+        if (null != next)
+            delete_(next);
+    }
+
+    private void delete_(Segment segment) {
+        if (!segment.file.delete())
+            Logger.warn("BetterLogs: cannot delete the unused log file %s", segment.file);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.math.BigInteger;
+import java.text.DecimalFormatSymbols;
+import java.util.Formattable;
+import java.util.Locale;
+
+/**
+ * A log pattern parsed once into literal segments and argument specifiers.
+ *
+ * <p>Only the plain <code>%s</code>, <code>%d</code>, <code>%%</code> and
+ * <code>%n</code> specifiers are compiled, anything else (flags, width,
+ * precision, argument index, other conversions) makes the template
+ * unsupported and the caller falls back to <code>String.format</code>. A
+ * compiled template renders the same string as <code>String.format</code>,
+ * when it cannot (missing argument, wrong type for <code>%d</code>,
+ * {@link Formattable} argument...) {@link #render} returns null.
+ */
+final class MessageTemplate {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    // buffers larger than this are not kept for reuse
+    private static final int MAX_BUFFER = 8192;
+
+    private static final ThreadLocal<Buffer> buffers_ = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    /**
+     * The string builder reused by the renderings of a thread
+     */
+    private static final class Buffer {
+        StringBuilder sb = new StringBuilder(256);
+        // rendering, e.g. an argument toString() which logs
+        boolean busy;
+    }
+
+    /**
+     * The pattern as written in the log call, without prefix
+     */
+    final String pattern;
+    final boolean supported;
+    // literals[i] comes before conversions[i], the last literal is the trailing one
+    private final String[] literals_;
+    private final char[] conversions_;
+
+    private MessageTemplate(String pattern, String[] literals, char[] conversions) {
+        this.pattern = pattern;
+        this.supported = null != literals;
+        this.literals_ = literals;
+        this.conversions_ = conversions;
+    }
+
+    /**
+     * Compile the full pattern (prefix included) of a log call whose own
+     * pattern is specified
+     */
+    static MessageTemplate compile(String pattern, String fullPattern) {
+        java.util.List<String> literals = new java.util.ArrayList<String>();
+        StringBuilder conversions = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        int len = fullPattern.length();
+        for (int i = 0; i < len; ++i) {
+            char c = fullPattern.charAt(i);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (++i == len)
+                return new MessageTemplate(pattern, null, null);
+            c = fullPattern.charAt(i);
+            if (c == '%') {
+                literal.append('%');
+            } else if (c == 'n') {
+                literal.append(LINE_SEPARATOR);
+            } else if (c == 's' || (c == 'd' && asciiDigits_())) {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                conversions.append(c);
+            } else {
+                return new MessageTemplate(pattern, null, null);
+            }
+        }
+        literals.add(literal.toString());
+        return new MessageTemplate(pattern, literals.toArray(new String[literals.size()]),
+                conversions.toString().toCharArray());
+    }
+
+    /*
+     * Whether %d renders the same as toString() in the default locale
+     */
+    private static boolean asciiDigits_() {
+        return new DecimalFormatSymbols(Locale.getDefault()).getZeroDigit() == '0';
+    }
+
+    /**
+     * Render the template with the arguments specified: the first
+     * <code>slots</code> ones are the thread id (<code>%thread</code> in the
+     * prefix), the next ones are the first <code>argc</code> arguments of the
+     * log call.
+     *
+     * @return null if the arguments do not fit the template, the caller should
+     *         then use <code>String.format</code>
+     */
+    String render(long threadId, int slots, Object[] args, int argc) {
+        int n = conversions_.length;
+        if (n > slots + argc)
+            return null;
+        for (int i = slots; i < n; ++i) {
+            Object arg = args[i - slots];
+            if (conversions_[i] == 's' ? arg instanceof Formattable : !integral_(arg))
+                return null;
+        }
+        Buffer buffer = buffers_.get();
+        boolean reuse = !buffer.busy;
+        StringBuilder sb = reuse ? buffer.sb : new StringBuilder();
+        if (reuse) {
+            buffer.busy = true;
+            sb.setLength(0);
+        }
+        try {
+            for (int i = 0; i < n; ++i) {
+                sb.append(literals_[i]);
+                if (i < slots)
+                    sb.append(threadId);
+                else
+                    sb.append(args[i - slots]); // "null" for null, as %s and %d do
+            }
+            sb.append(literals_[n]);
+            return sb.toString();
+        } catch (RuntimeException e) {
+            return null; // a failing toString(), let String.format fail the same way
+        } finally {
+            if (reuse) {
+                if (sb.capacity() > MAX_BUFFER)
+                    buffer.sb = new StringBuilder(256);
+                buffer.busy = false;
+            }
+        }
+    }
+
+    private static boolean integral_(Object arg) {
+        return null == arg || arg instanceof Integer || arg instanceof Long || arg instanceof Short
+                || arg instanceof Byte || arg instanceof BigInteger;
+    }
+}
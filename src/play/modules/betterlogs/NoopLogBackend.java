@@ -0,0 +1,47 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+/**
+ * Discard the log calls. Enhanced code skips them before evaluating their
+ * arguments
+ */
+class NoopLogBackend extends LogBackend {
+
+    @Override
+    public Object bind(LogSite site) {
+        return null;
+    }
+
+    @Override
+    public boolean isEnabled(Object logger, int level) {
+        return false;
+    }
+
+    @Override
+    public void write(Object logger, LogSite site, long timestamp, String threadName, long threadId,
+            Throwable throwable, String message) {
+    }
+
+    @Override
+    public void log(Object logger, LogSite site, Throwable throwable, String message) {
+    }
+
+    @Override
+    public int threshold() {
+        return LogSite.FATAL + 1;
+    }
+}
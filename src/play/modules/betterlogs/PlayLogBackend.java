@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import play.Logger;
+
+/**
+ * Log through <code>play.Logger</code>, the default. Events written later (see
+ * {@link AsyncLogger}) go to the log4j or <code>java.util.logging</code>
+ * logger <code>play.Logger</code> uses, to keep their time and thread.
+ */
+class PlayLogBackend extends LogBackend {
+
+    private static final String[] NAMES = { "TRACE", "DEBUG", "INFO", "WARN", "ERROR", "FATAL" };
+    // the message is rendered already, play.Logger does not format it without arguments
+    private static final Object[] NO_ARGS = {};
+
+    private final Log4jLogBackend log4j_ = new Log4jLogBackend();
+    private final JulLogBackend juli_ = new JulLogBackend();
+
+    private LogBackend delegate_() {
+        return Logger.forceJuli || null == Logger.log4j ? juli_ : log4j_;
+    }
+
+    @Override
+    public Object bind(LogSite site) {
+        return null; // play.Logger and the delegate backend are resolved on each call
+    }
+
+    @Override
+    public boolean isEnabled(Object logger, int level) {
+        // with one logger per caller class, play.Logger knows better
+        return Logger.recordCaller || Logger.isEnabledFor(NAMES[level]);
+    }
+
+    @Override
+    public void write(Object logger, LogSite site, long timestamp, String threadName, long threadId,
+            Throwable throwable, String message) {
+        LogBackend delegate = delegate_();
+        Object l = delegate.bind(site);
+        if (delegate.isEnabled(l, site.level))
+            delegate.write(l, site, timestamp, threadName, threadId, throwable, message);
+    }
+
+    @Override
+    public void log(Object logger, LogSite site, Throwable throwable, String message) {
+        switch (site.level) {
+        case LogSite.TRACE:
+            Logger.trace(message, NO_ARGS);
+            break;
+        case LogSite.DEBUG:
+            if (null == throwable) Logger.debug(message, NO_ARGS);
+            else Logger.debug(throwable, message, NO_ARGS);
+            break;
+        case LogSite.INFO:
+            if (null == throwable) Logger.info(message, NO_ARGS);
+            else Logger.info(throwable, message, NO_ARGS);
+            break;
+        case LogSite.WARN:
+            if (null == throwable) Logger.warn(message, NO_ARGS);
+            else Logger.warn(throwable, message, NO_ARGS);
+            break;
+        case LogSite.ERROR:
+            if (null == throwable) Logger.error(message, NO_ARGS);
+            else Logger.error(throwable, message, NO_ARGS);
+            break;
+        case LogSite.FATAL:
+            if (null == throwable) Logger.fatal(message, NO_ARGS);
+            else Logger.fatal(throwable, message, NO_ARGS);
+            break;
+        }
+    }
+
+    @Override
+    public Object batchLock(Object logger) {
+        if (Logger.recordCaller)
+            return null; // one log4j logger per caller class
+        LogBackend delegate = delegate_();
+        return delegate == log4j_ ? log4j_.batchLock(log4j_.bind(null)) : null;
+    }
+
+    @Override
+    public int threshold() {
+        if (Logger.recordCaller)
+            return LogSite.TRACE; // one log4j logger per caller class, levels might differ
+        int level = LogSite.TRACE;
+        while (level <= LogSite.FATAL && !Logger.isEnabledFor(NAMES[level]))
+            level++;
+        return level;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import play.Logger;
+
+/**
+ * The counters of BetterLogs in the Prometheus text exposition format
+ * (version 0.0.4): the lines and characters written by each log site, the
+ * calls and durations of the traced methods, the action metrics and the
+ * asynchronous logger.
+ *
+ * <p>Served by the plugin at <code>/@betterlogs/metrics</code>, and by a
+ * small HTTP server of its own if <code>betterlogs.metrics.port</code> is
+ * set, see {@link #start(String, int)}.
+ */
+final class PrometheusExporter {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private static HttpServer server_;
+
+    private PrometheusExporter() {
+    }
+
+    /**
+     * The current value of every metric
+     */
+    static String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        logs_(sb);
+        traces_(sb);
+        actions_(sb);
+        async_(sb);
+        return sb.toString();
+    }
+
+    /*
+     * One site per statement, the sites of a statement share their counters,
+     * see LogSite.counted()
+     */
+    private static void logs_(StringBuilder sb) {
+        header_(sb, "betterlogs_log_lines_total", "counter", "Lines written by each log statement");
+        for (LogSite site : LogSite.counted())
+            sample_(sb, "betterlogs_log_lines_total", site_(site), site.lines());
+        header_(sb, "betterlogs_log_chars_total", "counter",
+                "Characters of the messages written by each log statement, not counted by the binary and mmap backends");
+        for (LogSite site : LogSite.counted())
+            sample_(sb, "betterlogs_log_chars_total", site_(site), site.chars());
+    }
+
+    private static String site_(LogSite site) {
+        return labels_("class", site.clazz, "method", site.method, "line", String.valueOf(site.line),
+                "level", LogSite.levelName(site.level));
+    }
+
+    private static void traces_(StringBuilder sb) {
+        // by method: a class reloaded in dev mode replaces the sites of the previous one, still in memory until collected
+        Map<String, TraceSite> sites = new LinkedHashMap<String, TraceSite>();
+        for (TraceSite site : TraceSwitches.sites())
+            sites.put(site.toString(), site);
+        header_(sb, "betterlogs_trace_calls_total", "counter", "Calls of each traced method");
+        for (Map.Entry<String, TraceSite> e : sites.entrySet())
+            sample_(sb, "betterlogs_trace_calls_total", trace_(e.getKey()), e.getValue().calls());
+        header_(sb, "betterlogs_trace_logged_total", "counter", "Calls of each traced method logged after sampling");
+        for (Map.Entry<String, TraceSite> e : sites.entrySet())
+            sample_(sb, "betterlogs_trace_logged_total", trace_(e.getKey()), e.getValue().logged());
+        header_(sb, "betterlogs_trace_duration_seconds", "summary",
+                "Duration of each traced method, recorded if betterlogs.trace.histogram is on");
+        for (Map.Entry<String, LatencyHistogram> e : TimeTracker.histograms().entrySet())
+            summary_(sb, "betterlogs_trace_duration_seconds", trace_(e.getKey()), e.getValue());
+    }
+
+    /*
+     * The labels of a traced method, from "class.method(signature)"
+     */
+    private static String trace_(String method) {
+        int paren = method.indexOf('(');
+        if (paren < 0)
+            paren = method.length();
+        int dot = method.lastIndexOf('.', paren);
+        return labels_("class", method.substring(0, Math.max(0, dot)), "method", method.substring(dot + 1, paren),
+                "signature", method.substring(paren));
+    }
+
+    private static void actions_(StringBuilder sb) {
+        header_(sb, "betterlogs_action_duration_seconds", "summary",
+                "Duration of each action, recorded if betterlogs.metrics.actions is on");
+        for (ActionMetrics metrics : ActionMetrics.actions().values())
+            summary_(sb, "betterlogs_action_duration_seconds", labels_("action", metrics.action),
+                    metrics.histogram());
+        header_(sb, "betterlogs_action_errors_total", "counter", "Invocations of each action failed or answered with a 5xx status");
+        for (ActionMetrics metrics : ActionMetrics.actions().values())
+            sample_(sb, "betterlogs_action_errors_total", labels_("action", metrics.action), metrics.errors());
+    }
+
+    private static void async_(StringBuilder sb) {
+        if (null == AsyncLogger.instance())
+            return;
+        header_(sb, "betterlogs_async_queued_total", "counter", "Log calls published to the ring buffer");
+        sample_(sb, "betterlogs_async_queued_total", "", AsyncLogger.queued());
+        header_(sb, "betterlogs_async_written_total", "counter", "Log calls written by the background thread");
+        sample_(sb, "betterlogs_async_written_total", "", AsyncLogger.written());
+        header_(sb, "betterlogs_async_dropped_total", "counter", "Log calls dropped because of a full ring buffer");
+        sample_(sb, "betterlogs_async_dropped_total", "", AsyncLogger.dropped());
+        header_(sb, "betterlogs_async_pending", "gauge", "Log calls waiting in the ring buffer");
+        sample_(sb, "betterlogs_async_pending", "", AsyncLogger.pending());
+    }
+
+    private static void summary_(StringBuilder sb, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels.substring(0, labels.length() - 1) + ",quantile=\"";
+        for (double q : QUANTILES)
+            sb.append(name).append(prefix).append(q).append("\"} ").append(seconds_(histogram.percentile(q))).append('\n');
+        sb.append(name).append("_sum").append(labels).append(' ').append(seconds_(histogram.totalNanos())).append('\n');
+        sb.append(name).append("_count").append(labels).append(' ').append(histogram.count()).append('\n');
+    }
+
+    private static String seconds_(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static void header_(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample_(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name).append(labels).append(' ').append(value).append('\n');
+    }
+
+    /*
+     * {name="value",...} from name, value pairs
+     */
+    private static String labels_(String... pairs) {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(pairs[i]).append("=\"");
+            String value = null == pairs[i + 1] ? "" : pairs[i + 1];
+            for (int j = 0; j < value.length(); ++j) {
+                char c = value.charAt(j);
+                if ('\\' == c || '"' == c)
+                    sb.append('\\').append(c);
+                else if ('\n' == c)
+                    sb.append("\\n");
+                else
+                    sb.append(c);
+            }
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Serve the metrics at <code>http://address:port/metrics</code>
+     */
+    static synchronized void start(String address, int port) {
+        stop();
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+            server.createContext("/metrics", new HttpHandler() {
+                public void handle(HttpExchange exchange) throws IOException {
+                    try {
+                        byte[] body = scrape().getBytes("UTF-8");
+                        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                        exchange.sendResponseHeaders(200, body.length);
+                        OutputStream out = exchange.getResponseBody();
+                        out.write(body);
+                        out.close();
+                    } finally {
+                        exchange.close();
+                    }
+                }
+            });
+            server.start();
+            server_ = server;
+            Logger.info("BetterLogs: metrics served at http://%s:%s/metrics", address, port);
+        } catch (IOException e) {
+            Logger.warn(e, "BetterLogs: cannot serve the metrics at %s:%s", address, port);
+        }
+    }
+
+    static synchronized void stop() {
+        if (null != server_) {
+            server_.stop(0);
+            server_ = null;
+        }
+    }
+}
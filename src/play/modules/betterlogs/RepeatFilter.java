@@ -0,0 +1,260 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Suppression of the messages repeated by a log statement.
+ *
+ * <p>The first occurrence of a message is written, the same message logged
+ * again by the same statement within the window is only counted, and once
+ * the window is over one "repeated N times in Xms" line is written. Two
+ * messages are the same if their patterns are equal, their arguments render
+ * the same and their exceptions, if any, have the same class and message.
+ * The arguments are compared on their values if immutable (strings, boxed
+ * primitives...), on their <code>toString()</code> otherwise: no reference to
+ * the objects logged is kept, and the <code>equals()</code> and
+ * <code>hashCode()</code> of the application are never called.
+ *
+ * <p>Each statement remembers its last {@link #SLOTS} messages, in slots
+ * chosen by hash. Looking up and counting is lock free. The windows are
+ * closed by the next occurrence after them, or by a timer.
+ */
+final class RepeatFilter {
+
+    static final int SLOTS = 4;
+
+    /**
+     * The window in milliseconds, 0 if disabled
+     */
+    static volatile long window = 0;
+    /**
+     * The lowest level filtered
+     */
+    static volatile int level = LogSite.TRACE;
+
+    private static final ConcurrentLinkedQueue<Repeat> pending_ = new ConcurrentLinkedQueue<Repeat>();
+    private static final AtomicLong suppressed_ = new AtomicLong();
+    private static Timer timer_;
+
+    private RepeatFilter() {
+    }
+
+    /*
+     * The first occurrence of a message in a window, and the number of
+     * occurrences suppressed since then, negative once the window is closed
+     */
+    static final class Repeat {
+        final LogSite site;
+        final int hash;
+        final String pattern;
+        // the keys of the arguments, see key_(), dropped once the window is closed
+        volatile Object[] args;
+        final String throwableClass;
+        final String throwableMessage;
+        final long start;
+        volatile long last;
+        final AtomicLong count = new AtomicLong();
+
+        Repeat(LogSite site, int hash, Throwable throwable, String pattern, Object[] args, long start) {
+            this.site = site;
+            this.hash = hash;
+            this.pattern = pattern;
+            this.args = args;
+            this.throwableClass = null == throwable ? null : throwable.getClass().getName();
+            this.throwableMessage = null == throwable ? null : throwable.getMessage();
+            this.start = start;
+            this.last = start;
+        }
+
+        /*
+         * The arguments are keys, see key_()
+         */
+        boolean matches(int hash, Throwable throwable, String pattern, Object[] args) {
+            if (this.hash != hash || !eq_(this.pattern, pattern) || count.get() < 0)
+                return false;
+            Object[] a = this.args;
+            if (null == args ? null != a : null == a || !Arrays.equals(a, args))
+                return false;
+            if (null == throwable)
+                return null == throwableClass;
+            return throwable.getClass().getName().equals(throwableClass)
+                    && eq_(throwable.getMessage(), throwableMessage);
+        }
+
+        /*
+         * Count one more occurrence, false if the window is closed
+         */
+        boolean increment(long now) {
+            while (true) {
+                long n = count.get();
+                if (n < 0)
+                    return false;
+                if (count.compareAndSet(n, n + 1)) {
+                    last = now;
+                    if (0 == n)
+                        pending_.add(this);
+                    return true;
+                }
+            }
+        }
+
+        /*
+         * Close the window, and write the summary if some occurrences have been
+         * suppressed. Only the first call writes it
+         */
+        void close() {
+            long n = count.getAndSet(-1);
+            if (n < 0)
+                return;
+            Object[] a = args;
+            args = null;
+            if (n > 0)
+                site.repeated(n, last - start, pattern, a);
+        }
+    }
+
+    /**
+     * Whether the message logged by the site is a repeat to be suppressed
+     */
+    static boolean suppress(LogSite site, Throwable throwable, String pattern, Object[] args) {
+        long now = System.currentTimeMillis();
+        if (null != args) {
+            Object[] keys = new Object[args.length];
+            for (int i = 0; i < keys.length; ++i)
+                keys[i] = key_(args[i]);
+            args = keys;
+        }
+        int hash = hash_(throwable, pattern, args);
+        AtomicReferenceArray<Repeat> repeats = site.repeats();
+        int slot = hash & (SLOTS - 1);
+        Repeat repeat = repeats.get(slot);
+        if (null != repeat && repeat.matches(hash, throwable, pattern, args)) {
+            if (now - repeat.start < window && repeat.increment(now)) {
+                suppressed_.incrementAndGet();
+                return true;
+            }
+            repeat.close();
+        }
+        Repeat first = new Repeat(site, hash, throwable, pattern, args, now);
+        if (!repeats.compareAndSet(slot, repeat, first)) {
+            // another thread has just taken the slot, maybe with the same message
+            Repeat other = repeats.get(slot);
+            if (null != other && other.matches(hash, throwable, pattern, args) && other.increment(now)) {
+                suppressed_.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * An argument compared and kept as it is if it is a string or a boxed
+     * primitive (final classes of the JDK), rendered otherwise as String.format would do, the summary
+     * being formatted with the keys
+     */
+    private static Object key_(Object o) {
+        if (null == o || o instanceof String || o instanceof Integer || o instanceof Long
+                || o instanceof Boolean || o instanceof Character || o instanceof Double
+                || o instanceof Float || o instanceof Short || o instanceof Byte)
+            return o;
+        try {
+            return String.valueOf(o);
+        } catch (RuntimeException e) {
+            return o.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(o));
+        }
+    }
+
+    private static int hash_(Throwable throwable, String pattern, Object[] keys) {
+        int hash = null == pattern ? 0 : pattern.hashCode();
+        if (null != keys)
+            hash = 31 * hash + Arrays.hashCode(keys);
+        if (null != throwable)
+            hash = 31 * hash + throwable.getClass().getName().hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean eq_(Object o1, Object o2) {
+        return o1 == o2 || (null != o1 && o1.equals(o2));
+    }
+
+    /**
+     * Close the windows which are over
+     */
+    static void sweep(boolean all) {
+        long now = System.currentTimeMillis();
+        long w = window;
+        for (Iterator<Repeat> it = pending_.iterator(); it.hasNext();) {
+            Repeat repeat = it.next();
+            if (repeat.count.get() < 0) {
+                it.remove();
+            } else if (all || now - repeat.start >= w) {
+                repeat.close();
+                it.remove();
+            }
+        }
+    }
+
+    static synchronized void start(long window, int level) {
+        stop();
+        RepeatFilter.level = level;
+        RepeatFilter.window = window;
+        if (window <= 0)
+            return;
+        long period = Math.max(100, window / 2);
+        timer_ = new Timer("betterlogs-repeat-filter", true);
+        timer_.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    sweep(false);
+                } catch (Throwable t) {
+                    // never let the timer die
+                }
+            }
+        }, period, period);
+    }
+
+    /**
+     * Stop filtering, after writing the summaries of the windows not closed yet
+     */
+    static synchronized void stop() {
+        window = 0;
+        if (null != timer_) {
+            timer_.cancel();
+            timer_ = null;
+        }
+        sweep(true);
+    }
+
+    /**
+     * Number of messages suppressed since the start
+     */
+    static long suppressed() {
+        return suppressed_.get();
+    }
+
+    static String status() {
+        return String.format("Repeated messages: window %sms, suppressed %s", window, suppressed_.get());
+    }
+}
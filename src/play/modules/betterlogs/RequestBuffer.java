@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread buffer of the log calls of the action being invoked.
+ *
+ * <p>Between {@link #begin()} and {@link #end()} the log calls of the thread
+ * are captured in reused {@link LogEvent}s, keeping their time and thread,
+ * and written as one batch: at the end of the action, when the buffer is
+ * full, or right away after a call at or above the flush level. The
+ * messages of a batch are rendered first, then written holding the lock of
+ * the backend (see {@link LogBackend#batchLock(Object)}), so the lines of a
+ * request are contiguous and the appender lock is contended once per batch
+ * instead of once per line. The log calls outside of an action, and the ones
+ * made while an event is captured or a batch is written (e.g. by a
+ * toString()), are written as they happen.
+ */
+final class RequestBuffer {
+
+    static volatile boolean enabled = false;
+    // events buffered before flushing
+    static volatile int capacity = 256;
+    // level from which an event flushes the buffer, FATAL + 1 if none
+    static volatile int flushLevel = LogSite.FATAL + 1;
+
+    private static final AtomicLong batchCount_ = new AtomicLong();
+    private static final AtomicLong lineCount_ = new AtomicLong();
+
+    private static final ThreadLocal<RequestBuffer> buffer_ = new ThreadLocal<RequestBuffer>() {
+        @Override
+        protected RequestBuffer initialValue() {
+            return new RequestBuffer();
+        }
+    };
+
+    private LogEvent[] events_ = new LogEvent[16];
+    private String[] messages_ = new String[16];
+    private int count_ = 0;
+    private boolean active_ = false;
+    // capturing an event or writing a batch, which could call a toString() logging
+    private boolean busy_ = false;
+
+    private RequestBuffer() {
+    }
+
+    /**
+     * Start buffering the log calls of the current thread
+     */
+    static void begin() {
+        if (enabled)
+            buffer_.get().active_ = true;
+    }
+
+    /**
+     * Write the log calls buffered by the current thread and stop buffering
+     */
+    static void end() {
+        RequestBuffer buffer = buffer_.get();
+        buffer.active_ = false;
+        buffer.flush_();
+    }
+
+    /**
+     * Buffer a log call if the current thread is invoking an action. Called
+     * once the level of the site is known to be enabled for its logger, the
+     * calls disabled are neither captured nor counted
+     *
+     * @return false if the call is not buffered and should be written now
+     */
+    static boolean buffer(LogSite site, Throwable throwable, String pattern, Object[] args) {
+        RequestBuffer buffer = buffer_.get();
+        if (!buffer.active_ || buffer.busy_)
+            return false;
+        buffer.add_(site, throwable, pattern, args);
+        return true;
+    }
+
+    private void add_(LogSite site, Throwable throwable, String pattern, Object[] args) {
+        if (count_ == events_.length) {
+            events_ = Arrays.copyOf(events_, count_ * 2);
+            messages_ = new String[count_ * 2];
+        }
+        LogEvent e = events_[count_];
+        if (null == e) {
+            e = new LogEvent();
+            events_[count_] = e;
+        }
+        busy_ = true;
+        try {
+            e.set(site, throwable, pattern, args);
+        } finally {
+            busy_ = false;
+        }
+        count_++;
+        if (count_ >= capacity || site.level >= flushLevel)
+            flush_();
+    }
+
+    private void flush_() {
+        if (0 == count_)
+            return;
+        int count = count_;
+        LogEvent[] events = events_;
+        String[] messages = messages_;
+        busy_ = true;
+        try {
+            // rendered out of the lock, the other threads do not wait for the arguments formatted
+            for (int i = 0; i < count; ++i)
+                messages[i] = events[i].site.prepare(events[i]);
+            Object lock = LogBackend.current().batchLock(events[0].site.logger());
+            synchronized (null == lock ? RequestBuffer.class : lock) {
+                for (int i = 0; i < count; ++i)
+                    events[i].site.write(events[i], messages[i]);
+            }
+        } finally {
+            for (int i = 0; i < count; ++i) {
+                events[i].clear();
+                messages[i] = null;
+            }
+            count_ = 0;
+            busy_ = false;
+            batchCount_.incrementAndGet();
+            lineCount_.addAndGet(count);
+        }
+    }
+
+    /**
+     * Request buffer summary for the plugin status
+     */
+    static String status() {
+        long batches = batchCount_.get(), events = lineCount_.get();
+        return String.format("Request buffer: %s log calls in %s batches (%s per batch), flushed at %s calls%s", events,
+                batches, 0 == batches ? 0 : events / batches, capacity,
+                flushLevel > LogSite.FATAL ? "" : " or from " + LogSite.levelName(flushLevel).toUpperCase());
+    }
+}
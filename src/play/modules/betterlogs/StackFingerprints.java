@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fingerprints of the stack traces logged, so that a stack trace seen
+ * before is referenced instead of written again.
+ *
+ * <p>The fingerprint of a throwable is its class and the first
+ * <code>depth</code> frames of it and of each of its causes. The
+ * fingerprints are kept in a LRU cache of bounded size, with the number of
+ * times they have been logged. The id of a fingerprint is a hash of it, so a
+ * stack trace evicted from the cache keeps its id when written again.
+ */
+final class StackFingerprints {
+
+    private static final int MAX_CAUSES = 8;
+
+    static volatile boolean enabled = false;
+    static volatile int depth = 16;
+    private static int capacity_ = 1024;
+    private static Map<Key, Seen> cache_ = newCache_(capacity_);
+    private static final AtomicLong full_ = new AtomicLong();
+    private static final AtomicLong referenced_ = new AtomicLong();
+
+    private StackFingerprints() {
+    }
+
+    private static final class Key {
+        final String types;
+        final StackTraceElement[] frames;
+        final int hash;
+
+        Key(String types, StackTraceElement[] frames) {
+            this.types = types;
+            this.frames = frames;
+            this.hash = 31 * types.hashCode() + Arrays.hashCode(frames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return hash == k.hash && types.equals(k.types) && Arrays.equals(frames, k.frames);
+        }
+    }
+
+    /**
+     * A stack trace, and the number of times it has been logged including
+     * this one
+     */
+    static final class Seen {
+        final String id;
+        final long count;
+
+        Seen(String id, long count) {
+            this.id = id;
+            this.count = count;
+        }
+    }
+
+    private static Map<Key, Seen> newCache_(final int capacity) {
+        return new LinkedHashMap<Key, Seen>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Seen> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    static synchronized void configure(boolean enabled, int depth, int capacity) {
+        StackFingerprints.depth = Math.max(1, depth);
+        if (capacity != capacity_) {
+            capacity_ = Math.max(1, capacity);
+            cache_ = newCache_(capacity_);
+        }
+        StackFingerprints.enabled = enabled;
+    }
+
+    /**
+     * Count one more occurrence of the stack trace of the throwable
+     */
+    static Seen seen(Throwable throwable) {
+        Key key = key_(throwable);
+        Seen seen;
+        synchronized (StackFingerprints.class) {
+            seen = cache_.get(key);
+            seen = new Seen(null == seen ? id_(key) : seen.id, null == seen ? 1 : seen.count + 1);
+            cache_.put(key, seen);
+        }
+        (1 == seen.count ? full_ : referenced_).incrementAndGet();
+        return seen;
+    }
+
+    /*
+     * The classes of the throwable and its causes, and their first frames
+     */
+    private static Key key_(Throwable throwable) {
+        int d = depth;
+        StringBuilder types = new StringBuilder();
+        StackTraceElement[] frames = null;
+        int n = 0;
+        Throwable t = throwable;
+        for (int i = 0; i < MAX_CAUSES && null != t; ++i) {
+            if (i > 0)
+                types.append('<');
+            types.append(t.getClass().getName());
+            StackTraceElement[] trace = t.getStackTrace();
+            int m = Math.min(d, trace.length);
+            if (null == frames)
+                frames = new StackTraceElement[m];
+            else
+                frames = Arrays.copyOf(frames, n + m);
+            System.arraycopy(trace, 0, frames, n, m);
+            n += m;
+            Throwable cause = t.getCause();
+            t = cause == t ? null : cause;
+        }
+        return new Key(types.toString(), null == frames ? new StackTraceElement[0] : frames);
+    }
+
+    private static String id_(Key key) {
+        int h = key.hash;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        String hex = Integer.toHexString(h);
+        return "00000000".substring(hex.length()) + hex;
+    }
+
+    static String status() {
+        int size;
+        synchronized (StackFingerprints.class) {
+            size = cache_.size();
+        }
+        return String.format("Stack traces: %s fingerprints cached, written in full %s, referenced %s", size,
+                full_.get(), referenced_.get());
+    }
+}
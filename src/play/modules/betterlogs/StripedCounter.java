@@ -0,0 +1,82 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A few counters updated together, striped on contention.
+ *
+ * <p>The counters are first added with a CAS on a single base. Once a CAS
+ * fails, the additions go to cells chosen by the id of the calling thread,
+ * one cache line apart, and the sum is the base plus the cells. The sum
+ * read while adding is not a snapshot, like a LongAdder.
+ */
+final class StripedCounter {
+
+    private static final int STRIPES = Math.min(16,
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1);
+    // 8 longs per stripe
+    private static final int PAD = 3;
+
+    private final int size_;
+    private final AtomicLongArray base_;
+    private volatile AtomicLongArray cells_;
+
+    StripedCounter(int size) {
+        if (size > 1 << PAD)
+            throw new IllegalArgumentException("too many counters: " + size);
+        size_ = size;
+        base_ = new AtomicLongArray(size);
+    }
+
+    void add(int counter, long x) {
+        AtomicLongArray cells = cells_;
+        if (null == cells) {
+            long v = base_.get(counter);
+            if (base_.compareAndSet(counter, v, v + x))
+                return;
+            cells = cells_();
+        }
+        cells.addAndGet((((int) Thread.currentThread().getId() & (STRIPES - 1)) << PAD) + counter, x);
+    }
+
+    private synchronized AtomicLongArray cells_() {
+        if (null == cells_)
+            cells_ = new AtomicLongArray(STRIPES << PAD);
+        return cells_;
+    }
+
+    long sum(int counter) {
+        long sum = base_.get(counter);
+        AtomicLongArray cells = cells_;
+        if (null != cells) {
+            for (int i = 0; i < STRIPES; ++i)
+                sum += cells.get((i << PAD) + counter);
+        }
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < size_; ++i)
+            base_.set(i, 0);
+        AtomicLongArray cells = cells_;
+        if (null != cells) {
+            for (int i = 0; i < cells.length(); ++i)
+                cells.set(i, 0);
+        }
+    }
+}
@@ -1,19 +1,367 @@
 package play.modules.betterlogs;
 
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Track the time spent in traced methods, with a per thread stack of
+ * <code>System.nanoTime()</code> entry times.
+ *
+ * <p>When {@link #aggregate} is on, the duration of each traced method is
+ * also recorded in a {@link LatencyHistogram} of the method, see
+ * {@link #histograms()}
+ */
 public class TimeTracker {
-    private static ThreadLocal<Stack<Long>> stack_ = new ThreadLocal<Stack<Long>>(){
-        @Override protected Stack<Long> initialValue() {
-            return new Stack<Long>();
+    private static ThreadLocal<TimeTracker> tracker_ = new ThreadLocal<TimeTracker>(){
+        @Override protected TimeTracker initialValue() {
+            return new TimeTracker();
         }
     };
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> histograms_ = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Whether durations are recorded in the histogram of each traced method
+     */
+    static volatile boolean aggregate = false;
+
+    /**
+     * Tail-based tracing: if positive, the entry/exit of traced calls are
+     * buffered per thread and logged only if a call of the tree took at least
+     * this duration, in nanoseconds
+     */
+    static volatile long slowNanos = 0;
+    /**
+     * Number of entry/exit events buffered per thread in tail-based tracing
+     */
+    static volatile int slowBufferSize = 256;
+    /**
+     * Maximum number of nodes of the call tree profiled per request
+     */
+    static volatile int profileMaxNodes = 1024;
+
+    private long[] starts_ = new long[32];
+    // whether the entry/exit of each call in the stack is logged
+    private boolean[] logged_ = new boolean[32];
+    // the traced method of each call in the stack, null for enter()
+    private TraceSite[] sites_ = new TraceSite[32];
+    // whether the entry of each call in the stack has been buffered
+    private boolean[] buffered_ = new boolean[32];
+    // the call tree node of each call in the stack, -1 if not profiled
+    private int[] nodes_ = new int[32];
+    // the value returned by each call in the stack, if captured
+    private String[] returned_ = new String[32];
+    private int depth_ = 0;
+    // the value returned by the last call exited, see returned()
+    private String lastReturned_;
+
+    // the entry/exit events of the current call tree in tail-based tracing,
+    // preallocated at the first traced call of the thread
+    private TraceSite[] events_;
+    // System.nanoTime() at the entry, or the duration of the call at the exit
+    private long[] eventTimes_;
+    // depth of the call, negative for the exit events
+    private int[] eventDepths_;
+    private int eventCount_ = 0;
+    private int eventsDropped_ = 0;
+    private boolean slow_ = false;
+
+    // the call tree of the current request, see startProfile()
+    private CallTree tree_;
+    private boolean profiling_ = false;
+
+    private void push_(long time, boolean logged, TraceSite site) {
+        if (depth_ == starts_.length) {
+            starts_ = Arrays.copyOf(starts_, depth_ * 2);
+            logged_ = Arrays.copyOf(logged_, depth_ * 2);
+            sites_ = Arrays.copyOf(sites_, depth_ * 2);
+            buffered_ = Arrays.copyOf(buffered_, depth_ * 2);
+            nodes_ = Arrays.copyOf(nodes_, depth_ * 2);
+            returned_ = Arrays.copyOf(returned_, depth_ * 2);
+        }
+        returned_[depth_] = null;
+        buffered_[depth_] = false;
+        nodes_[depth_] = -1;
+        logged_[depth_] = logged;
+        sites_[depth_] = site;
+        starts_[depth_++] = time;
+    }
+
+    /*
+     * The position of the innermost call of the site in the stack, -1 if
+     * none. The probes of a method could be switched on or off between its
+     * entry and its exit (see TraceSwitches): an exit without entry must not
+     * pop the caller, an entry without exit is dropped with its caller
+     */
+    private int find_(TraceSite site) {
+        for (int i = depth_ - 1; i >= 0; --i) {
+            if (sites_[i] == site)
+                return i;
+        }
+        return -1;
+    }
+
+    private long pop_(long time) {
+        if (0 == depth_) return 0;
+        sites_[--depth_] = null;
+        return time - starts_[depth_];
+    }
+
     public static void enter() {
-        stack_.get().push(System.currentTimeMillis());
+        tracker_.get().push_(System.nanoTime(), true, null);
+    }
+
+    /**
+     * Enter a traced method
+     *
+     * @return whether the entry and the exit of this call should be logged,
+     *         see {@link TraceSite#sample()}
+     */
+    public static boolean enter(TraceSite site) {
+        if (slowNanos > 0) {
+            TimeTracker tracker = tracker_.get();
+            long now = System.nanoTime();
+            tracker.push_(now, false, site);
+            if (tracker.profiling_)
+                tracker.profile_(site);
+            if (site.traced()) {
+                tracker.buffered_[tracker.depth_ - 1] = true;
+                tracker.buffer_(site, now, tracker.depth_);
+            }
+            return false;
+        }
+        boolean logged = site.sample();
+        TimeTracker tracker = tracker_.get();
+        tracker.push_(System.nanoTime(), logged, site);
+        if (tracker.profiling_)
+            tracker.profile_(site);
+        return logged;
     }
-    
+
+    /**
+     * @return the time spent since the matching {@link #enter()} in milliseconds
+     */
     public static long exit() {
-        return System.currentTimeMillis() - stack_.get().pop();
+        return tracker_.get().pop_(System.nanoTime()) / 1000000;
+    }
+
+    /**
+     * @return the time spent in the traced method since the matching
+     *         {@link #enter(TraceSite)} in nanoseconds, or -1 if the exit
+     *         should not be logged
+     */
+    public static long exit(TraceSite site) {
+        TimeTracker tracker = tracker_.get();
+        int i = tracker.find_(site);
+        if (i < 0)
+            return -1;
+        long nanos = System.nanoTime() - tracker.starts_[i];
+        boolean logged = tracker.logged_[i];
+        boolean buffered = tracker.buffered_[i];
+        if (tracker.profiling_ && tracker.nodes_[i] > CallTree.ROOT)
+            tracker.tree_.exit(tracker.nodes_[i], nanos);
+        tracker.lastReturned_ = logged ? tracker.returned_[i] : null;
+        while (tracker.depth_ > i) {
+            tracker.sites_[--tracker.depth_] = null;
+            tracker.returned_[tracker.depth_] = null;
+        }
+        if (aggregate)
+            site.histogram().record(nanos);
+        site.exited(nanos);
+        if (buffered) {
+            tracker.buffer_(site, nanos, -(i + 1));
+            if (nanos >= slowNanos)
+                tracker.slow_ = true;
+        }
+        if (0 == tracker.depth_ && tracker.eventCount_ > 0)
+            tracker.flush_(site, nanos);
+        return logged ? nanos : -1;
+    }
+
+    /**
+     * Whether the entry/exit of the innermost call of the traced method is
+     * logged, called before capturing its return value
+     */
+    public static boolean logging(TraceSite site) {
+        TimeTracker tracker = tracker_.get();
+        int i = tracker.find_(site);
+        return i >= 0 && tracker.logged_[i];
+    }
+
+    /**
+     * Keep the value rendered for the return of the innermost call of the
+     * traced method, to be logged at its exit
+     */
+    public static void returned(TraceSite site, String value) {
+        TimeTracker tracker = tracker_.get();
+        int i = tracker.find_(site);
+        if (i >= 0)
+            tracker.returned_[i] = value;
     }
 
+    /**
+     * The value returned by the call just exited as " = value", an empty
+     * string if not captured
+     */
+    public static String returned() {
+        TimeTracker tracker = tracker_.get();
+        String value = tracker.lastReturned_;
+        tracker.lastReturned_ = null;
+        return null == value ? "" : " = " + value;
+    }
+
+    /*
+     * Record the call just pushed in the call tree, under the call of the
+     * caller
+     */
+    private void profile_(TraceSite site) {
+        int parent = depth_ > 1 ? nodes_[depth_ - 2] : -1;
+        if (CallTree.DROPPED == parent)
+            nodes_[depth_ - 1] = CallTree.DROPPED;
+        else
+            nodes_[depth_ - 1] = tree_.enter(site, parent < 0 ? CallTree.ROOT : parent);
+    }
+
+    /**
+     * Start profiling the traced calls of the current thread, e.g. before
+     * invoking an action
+     */
+    static void startProfile() {
+        TimeTracker tracker = tracker_.get();
+        if (null == tracker.tree_)
+            tracker.tree_ = new CallTree(profileMaxNodes);
+        tracker.tree_.reset();
+        tracker.profiling_ = true;
+    }
+
+    /**
+     * Stop profiling the traced calls of the current thread
+     *
+     * @param root the name of the root of the tree, e.g. the action
+     * @param collapsed whether to render in the collapsed stack format
+     * @return the call tree profiled since {@link #startProfile()}, null if
+     *         not profiling
+     */
+    static String endProfile(String root, boolean collapsed) {
+        TimeTracker tracker = tracker_.get();
+        if (!tracker.profiling_)
+            return null;
+        tracker.profiling_ = false;
+        StringBuilder sb = new StringBuilder();
+        if (collapsed)
+            tracker.tree_.renderCollapsed(root, sb);
+        else
+            tracker.tree_.render(root, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Stop profiling the traced calls of the current thread, e.g. after an
+     * invocation failed
+     */
+    static void stopProfile() {
+        tracker_.get().profiling_ = false;
+    }
+
+    private void buffer_(TraceSite site, long time, int depth) {
+        if (null == events_) {
+            int size = Math.max(2, slowBufferSize);
+            events_ = new TraceSite[size];
+            eventTimes_ = new long[size];
+            eventDepths_ = new int[size];
+        }
+        if (eventCount_ == events_.length) {
+            eventsDropped_++;
+            return;
+        }
+        events_[eventCount_] = site;
+        eventTimes_[eventCount_] = time;
+        eventDepths_[eventCount_++] = depth;
+    }
+
+    /*
+     * The root call of the tree exited: log the events buffered if a call
+     * was slow, in one message so that the tree is not interleaved with
+     * other threads' logs, and forget them
+     */
+    private void flush_(TraceSite root, long nanos) {
+        try {
+            if (slow_) {
+                StringBuilder sb = new StringBuilder("slow call ").append(root).append(": ")
+                        .append(millis(nanos)).append("ms");
+                long start = eventTimes_[0];
+                for (int i = 0; i < eventCount_; ++i) {
+                    int depth = eventDepths_[i];
+                    sb.append('\n');
+                    for (int d = Math.abs(depth); d > 1; --d)
+                        sb.append("  ");
+                    sb.append('[').append(events_[i].label()).append(']');
+                    if (depth > 0)
+                        sb.append("enter ").append(events_[i]).append(" +")
+                                .append(millis(eventTimes_[i] - start)).append("ms");
+                    else
+                        sb.append("exit: ").append(events_[i]).append(' ')
+                                .append(millis(eventTimes_[i])).append("ms");
+                }
+                if (eventsDropped_ > 0)
+                    sb.append('\n').append(eventsDropped_).append(" more entry/exit not buffered");
+                log_(TraceSampler.level, sb.toString());
+            }
+        } finally {
+            Arrays.fill(events_, 0, eventCount_, null);
+            eventCount_ = 0;
+            eventsDropped_ = 0;
+            slow_ = false;
+        }
+    }
+
+    // the sites writing the slow call trees, one per level, created when first used
+    private static final LogSite[] slowSites_ = new LogSite[LogSite.FATAL + 1];
+
+    /*
+     * Write through a site of the module, as the entry/exit probes do: to
+     * the backend configured, asynchronously or with the request buffer if
+     * enabled
+     */
+    private static void log_(int level, String message) {
+        LogSite site = slowSites_[level];
+        if (null == site) {
+            site = new LogSite(LogSite.levelName(level), TimeTracker.class.getName(), "TimeTracker",
+                    "play.modules.betterlogs", "slowCall", "()V", "TimeTracker.java", "TimeTracker.java", 0);
+            slowSites_[level] = site; // a duplicate is harmless
+        }
+        site.log("%s", new Object[] { message });
+    }
+
+    /**
+     * Format a duration in nanoseconds as milliseconds, e.g. "12.345"
+     */
+    public static String millis(long nanos) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        StringBuilder sb = new StringBuilder().append(micros / 1000).append('.');
+        if (fraction < 100) sb.append('0');
+        if (fraction < 10) sb.append('0');
+        return sb.append(fraction).toString();
+    }
+
+    static LatencyHistogram histogram(String method) {
+        LatencyHistogram histogram = histograms_.get(method);
+        if (null == histogram) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms_.putIfAbsent(method, newHistogram);
+            if (null == histogram)
+                histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    /**
+     * The latency histograms recorded so far, by method ("class.method(signature)")
+     */
+    public static Map<String, LatencyHistogram> histograms() {
+        return Collections.unmodifiableMap(histograms_);
+    }
 }
@@ -19,4 +19,18 @@ import java.lang.annotation.Target;
 @Target({ElementType.METHOD, ElementType.CONSTRUCTOR})
 public @interface Trace {
     String[] value() default {};
+
+    /**
+     * Log the entry/exit of 1 call out of sampleRate. Default to the rate
+     * configured in application.conf
+     */
+    int sampleRate() default 0;
+
+    /**
+     * Log the parameters at the entry and the return value at the exit,
+     * rendered within the budget configured in application.conf (see
+     * {@link ValueRenderer}). Always done if
+     * <code>betterlogs.trace.capture=true</code>
+     */
+    boolean capture() default false;
 }
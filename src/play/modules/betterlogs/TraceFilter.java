@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javassist.CtBehavior;
+import javassist.CtConstructor;
+import javassist.Modifier;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.Opcode;
+
+/**
+ * Selection of the methods traced in {@link BetterLogsPlugin.TraceMode#TRACE}
+ * mode, at enhancement time.
+ *
+ * <p>A method is traced if it matches one of the
+ * <code>betterlogs.trace.include</code> patterns (all methods if none), none
+ * of the <code>betterlogs.trace.exclude</code> patterns, and is not trivial.
+ * A pattern is a glob matched against "package.Class.method" or any prefix
+ * of it ending before a ".": <code>*</code> matches any characters but ".",
+ * <code>**</code> any characters and <code>?</code> one character, e.g.
+ * <code>models</code>, <code>controllers.*.index</code>,
+ * <code>**.get*</code>. The patterns of each list are compiled into a single
+ * regular expression.
+ *
+ * <p>A method is trivial if it is a field getter or setter, or if its
+ * bytecode is at most <code>betterlogs.trace.skipTrivial.maxSize</code> bytes
+ * long, without call (but the super constructor), loop nor lock: such
+ * methods are called often, take nanoseconds, and are inlined by the JIT
+ * only if left alone. Methods annotated with {@link Trace} are traced
+ * whatever the rules.
+ */
+final class TraceFilter {
+
+    // null if no pattern
+    private static Pattern include_;
+    private static Pattern exclude_;
+    static boolean skipTrivial = true;
+    static int trivialMaxSize = 32;
+
+    private TraceFilter() {
+    }
+
+    static synchronized void configure(Properties conf) {
+        include_ = compile(conf.getProperty(BetterLogsPlugin.CONF_TRACE_INCLUDE));
+        exclude_ = compile(conf.getProperty(BetterLogsPlugin.CONF_TRACE_EXCLUDE));
+        skipTrivial = Boolean.parseBoolean(conf.getProperty(BetterLogsPlugin.CONF_TRACE_SKIP_TRIVIAL, "true"));
+        String s = conf.getProperty(BetterLogsPlugin.CONF_TRACE_SKIP_TRIVIAL_MAX_SIZE);
+        trivialMaxSize = 32;
+        if (null != s) {
+            try {
+                trivialMaxSize = Integer.parseInt(s.trim());
+            } catch (NumberFormatException e) {
+                play.Logger.warn("invalid %s found in config: %s. Set to %s", BetterLogsPlugin.CONF_TRACE_SKIP_TRIVIAL_MAX_SIZE, s, 32);
+            }
+        }
+    }
+
+    /**
+     * Compile globs separated by "," into a regular expression matching a
+     * name or any of its prefixes ending before a ".", null if there is no
+     * glob
+     */
+    static Pattern compile(String globs) {
+        if (null == globs)
+            return null;
+        StringBuilder sb = new StringBuilder("(?:");
+        int count = 0;
+        for (String glob : globs.split(",")) {
+            glob = glob.trim();
+            if (0 == glob.length())
+                continue;
+            if (count++ > 0)
+                sb.append('|');
+            for (int i = 0; i < glob.length(); ++i) {
+                char c = glob.charAt(i);
+                if ('*' == c) {
+                    if (i + 1 < glob.length() && '*' == glob.charAt(i + 1)) {
+                        sb.append(".*");
+                        i++;
+                    } else {
+                        sb.append("[^.]*");
+                    }
+                } else if ('?' == c) {
+                    sb.append("[^.]");
+                } else if (Character.isLetterOrDigit(c) || '_' == c) {
+                    sb.append(c);
+                } else {
+                    sb.append('\\').append(c);
+                }
+            }
+        }
+        if (0 == count)
+            return null;
+        return Pattern.compile(sb.append(")(?:\\..*)?").toString());
+    }
+
+    /**
+     * Whether none of the methods of the class could be traced by the rules,
+     * so that the class is not even parsed for them
+     */
+    static boolean excludes(String className) {
+        Pattern exclude = exclude_, include = include_;
+        if (null != exclude && exclude.matcher(className).matches())
+            return true;
+        if (null == include)
+            return false;
+        // no method of the class matches if no name starting with "className." could
+        Matcher m = include.matcher(className + ".");
+        return !m.matches() && !m.hitEnd();
+    }
+
+    /**
+     * Whether the method is traced, if not annotated
+     */
+    static boolean traced(String className, CtBehavior behavior) {
+        String name = className + "." + behavior.getName();
+        Pattern exclude = exclude_, include = include_;
+        if (null != include && !include.matcher(name).matches())
+            return false;
+        if (null != exclude && exclude.matcher(name).matches())
+            return false;
+        return !skipTrivial || !trivial(behavior);
+    }
+
+    static boolean trivial(CtBehavior behavior) {
+        CodeAttribute ca = behavior.getMethodInfo2().getCodeAttribute();
+        if (null == ca || Modifier.isSynchronized(behavior.getModifiers()))
+            return false;
+        return accessor_(ca) || (ca.getCodeLength() <= trivialMaxSize && leaf_(behavior, ca));
+    }
+
+    /*
+     * this.field or Class.field returned, or set from the first parameter
+     */
+    private static boolean accessor_(CodeAttribute ca) {
+        byte[] code = ca.getCode();
+        int first = code[0] & 0xff, last = code[code.length - 1] & 0xff;
+        switch (code.length) {
+        case 4: // getstatic, xreturn
+            return Opcode.GETSTATIC == first && Opcode.RETURN != last && return_(last);
+        case 5: // aload_0, getfield, xreturn or xload_0, putstatic, return
+            if (Opcode.ALOAD_0 == first && Opcode.GETFIELD == (code[1] & 0xff))
+                return Opcode.RETURN != last && return_(last);
+            return load_(first, 0) && Opcode.PUTSTATIC == (code[1] & 0xff) && Opcode.RETURN == last;
+        case 6: // aload_0, xload_1, putfield, return
+            return Opcode.ALOAD_0 == first && load_(code[1] & 0xff, 1) && Opcode.PUTFIELD == (code[2] & 0xff)
+                    && Opcode.RETURN == last;
+        default:
+            return false;
+        }
+    }
+
+    /*
+     * Whether the opcode is one of iload_n, lload_n, fload_n, dload_n, aload_n
+     */
+    private static boolean load_(int op, int n) {
+        return op >= Opcode.ILOAD_0 && op <= Opcode.ALOAD_3 && (op - Opcode.ILOAD_0) % 4 == n;
+    }
+
+    private static boolean return_(int op) {
+        return op >= Opcode.IRETURN && op <= Opcode.RETURN;
+    }
+
+    /*
+     * Whether the code has no call, but to the super constructor, no
+     * backward jump and no lock
+     */
+    private static boolean leaf_(CtBehavior behavior, CodeAttribute ca) {
+        ConstPool cp = ca.getConstPool();
+        // the super constructor, or another constructor of the class
+        String superclass = behavior instanceof CtConstructor ? behavior.getDeclaringClass().getClassFile2().getSuperclass() : null;
+        CodeIterator it = ca.iterator();
+        try {
+            while (it.hasNext()) {
+                int pos = it.next();
+                int op = it.byteAt(pos);
+                switch (op) {
+                case Opcode.INVOKESPECIAL:
+                    int idx = it.u16bitAt(pos + 1);
+                    String owner = cp.getMethodrefClassName(idx);
+                    if (null != superclass && "<init>".equals(cp.getMethodrefName(idx))
+                            && (superclass.equals(owner) || behavior.getDeclaringClass().getName().equals(owner)))
+                        break;
+                    return false;
+                case Opcode.INVOKEVIRTUAL: case Opcode.INVOKESTATIC: case Opcode.INVOKEINTERFACE:
+                case 186: // invokedynamic
+                case Opcode.MONITORENTER: case Opcode.JSR: case Opcode.JSR_W:
+                    return false;
+                case Opcode.GOTO_W:
+                    if (it.s32bitAt(pos + 1) <= 0)
+                        return false;
+                    break;
+                default:
+                    if (((op >= Opcode.IFEQ && op <= Opcode.GOTO) || op == Opcode.IFNULL || op == Opcode.IFNONNULL)
+                            && it.s16bitAt(pos + 1) <= 0)
+                        return false;
+                }
+            }
+        } catch (BadBytecode e) {
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import play.Logger;
+
+/**
+ * Runtime pruning of the probes of hot tiny methods.
+ *
+ * <p>Every interval, the calls of each traced method since the last check
+ * are counted. A method called at least <code>minRate</code> times per
+ * second, taking less than <code>threshold</code> nanoseconds on average,
+ * costs more in probes than it tells: its probes are switched off for good,
+ * see {@link TraceSwitches#prune(TraceSite)}. A switched off probe costs
+ * one array read and one branch, and leaves the method small enough to be
+ * inlined again.
+ */
+final class TracePruner {
+
+    static final int CALLS = 0;
+    static final int NANOS = 1;
+
+    // set before the traced classes are initialized, so that their sites count the calls
+    static volatile boolean enabled = false;
+    private static int interval_ = 10;
+    private static long minRate_ = 10000;
+    private static long thresholdNanos_ = 5000;
+    private static long lastCheck_;
+    private static Timer timer_;
+
+    private TracePruner() {
+    }
+
+    /**
+     * @param interval seconds between checks
+     * @param minRate calls per second above which a method could be pruned
+     * @param thresholdNanos average duration below which it is
+     */
+    static synchronized void configure(boolean enabled, int interval, long minRate, long thresholdNanos) {
+        TracePruner.enabled = enabled;
+        interval_ = Math.max(1, interval);
+        minRate_ = minRate;
+        thresholdNanos_ = thresholdNanos;
+    }
+
+    static synchronized void start() {
+        stop();
+        if (!enabled)
+            return;
+        lastCheck_ = System.nanoTime();
+        timer_ = new Timer("betterlogs-trace-pruner", true);
+        timer_.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (Throwable t) {
+                    // never let the timer die
+                }
+            }
+        }, interval_ * 1000L, interval_ * 1000L);
+    }
+
+    static synchronized void stop() {
+        if (null != timer_) {
+            timer_.cancel();
+            timer_ = null;
+        }
+    }
+
+    /**
+     * Prune the methods hot and fast since the last check
+     *
+     * @return the number of methods pruned
+     */
+    static synchronized int check() {
+        long now = System.nanoTime();
+        long elapsed = Math.max(1, now - lastCheck_);
+        lastCheck_ = now;
+        int n = 0;
+        for (TraceSite site : TraceSwitches.sites()) {
+            long calls = site.usage(CALLS), nanos = site.usage(NANOS);
+            long windowCalls = calls - site.prunerCalls, windowNanos = nanos - site.prunerNanos;
+            site.prunerCalls = calls;
+            site.prunerNanos = nanos;
+            if (windowCalls <= 0)
+                continue;
+            long rate = (long) (windowCalls * 1e9 / elapsed);
+            long average = windowNanos / windowCalls;
+            if (rate >= minRate_ && average < thresholdNanos_ && TraceSwitches.prune(site)) {
+                n++;
+                Logger.info("[BL] trace probes of %s switched off: %s calls/s, %sns on average", site, rate, average);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Pruning summary for the plugin status
+     */
+    static String status() {
+        return String.format("Trace pruning: %s methods pruned, above %s calls/s and below %sns, checked every %ss",
+                TraceSwitches.prunedCount(), minRate_, thresholdNanos_, interval_);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sampling of the entry/exit logs of traced methods.
+ *
+ * <p>Each traced method logs 1 call out of a fixed rate, resolved once per
+ * method from, in this order: {@link Trace#sampleRate()}, the longest
+ * <code>betterlogs.trace.sampling.method.&lt;package|class|class.method&gt;</code>
+ * entry matching the method, the lowest
+ * <code>betterlogs.trace.sampling.theme.&lt;theme&gt;</code> rate of its themes and
+ * <code>betterlogs.trace.sampling.rate</code>.
+ *
+ * <p>With a budget (<code>betterlogs.trace.sampling.budget</code>, lines per
+ * second), the calls of each method during the last second are used to
+ * lower the sampling rate of the hottest methods first so that the total
+ * fits the budget, and no more lines than the budget are logged in a second
+ * anyway.
+ */
+final class TraceSampler {
+
+    private static int rate_ = 1;
+    private static Map<String, Integer> themeRates_ = new HashMap<String, Integer>();
+    private static Map<String, Integer> methodRates_ = new HashMap<String, Integer>();
+
+    // the level of the entry/exit logs: no sampling at all when disabled
+    static volatile int level = LogSite.TRACE;
+    // lines per second, 0 for no budget
+    private static volatile long budget_ = 0;
+    private static final AtomicLong windowLines_ = new AtomicLong();
+
+    private static final ConcurrentLinkedQueue<WeakReference<TraceSite>> sites_ = new ConcurrentLinkedQueue<WeakReference<TraceSite>>();
+    // references in sites_, and the count above which the cleared ones are removed, see rate()
+    private static int registered_ = 0;
+    private static int pruneAt_ = 1024;
+    private static Timer timer_;
+
+    private TraceSampler() {
+    }
+
+    /**
+     * Read the sampling configuration, before the traced methods are enhanced
+     */
+    static synchronized void configure(Properties conf, int traceLevel) {
+        level = traceLevel;
+        rate_ = rate_(conf, BetterLogsPlugin.CONF_TRACE_SAMPLING_RATE, conf.getProperty(BetterLogsPlugin.CONF_TRACE_SAMPLING_RATE), 1);
+        Map<String, Integer> themeRates = new HashMap<String, Integer>();
+        Map<String, Integer> methodRates = new HashMap<String, Integer>();
+        for (Map.Entry<Object, Object> e : conf.entrySet()) {
+            String key = e.getKey().toString();
+            if (key.startsWith(BetterLogsPlugin.CONF_TRACE_SAMPLING_THEME))
+                themeRates.put(key.substring(BetterLogsPlugin.CONF_TRACE_SAMPLING_THEME.length()), rate_(conf, key, e.getValue(), 1));
+            else if (key.startsWith(BetterLogsPlugin.CONF_TRACE_SAMPLING_METHOD))
+                methodRates.put(key.substring(BetterLogsPlugin.CONF_TRACE_SAMPLING_METHOD.length()), rate_(conf, key, e.getValue(), 1));
+        }
+        themeRates_ = themeRates;
+        methodRates_ = methodRates;
+        budget_ = rate_(conf, BetterLogsPlugin.CONF_TRACE_SAMPLING_BUDGET, conf.getProperty(BetterLogsPlugin.CONF_TRACE_SAMPLING_BUDGET), 0);
+    }
+
+    private static int rate_(Properties conf, String key, Object value, int def) {
+        if (null == value)
+            return def;
+        try {
+            return Math.max(def, Integer.parseInt(value.toString().trim()));
+        } catch (NumberFormatException e) {
+            play.Logger.warn("invalid %s found in config: %s. Set to %s", key, value, def);
+            return def;
+        }
+    }
+
+    /**
+     * The fixed sampling rate of a traced method
+     */
+    static synchronized int rate(TraceSite site, int annotated) {
+        sites_.add(new WeakReference<TraceSite>(site));
+        if (++registered_ >= pruneAt_) {
+            // the sites of the classes reloaded, also without budget: amortized over the registrations
+            registered_ = 0;
+            for (Iterator<WeakReference<TraceSite>> it = sites_.iterator(); it.hasNext();) {
+                if (null == it.next().get())
+                    it.remove();
+                else
+                    registered_++;
+            }
+            pruneAt_ = Math.max(1024, 2 * registered_);
+        }
+        if (annotated > 0)
+            return annotated;
+        String name = site.clazz + "." + site.method;
+        String best = null;
+        for (String prefix : methodRates_.keySet()) {
+            if ((name.equals(prefix) || name.startsWith(prefix + "."))
+                    && (null == best || prefix.length() > best.length()))
+                best = prefix;
+        }
+        if (null != best)
+            return methodRates_.get(best);
+        int rate = -1;
+        if (null != site.themes) {
+            for (String theme : TraceThemes.compile(site.themes).names) {
+                Integer r = themeRates_.get(theme);
+                if (null != r && (rate < 0 || r < rate))
+                    rate = r;
+            }
+        }
+        return rate < 0 ? rate_ : rate;
+    }
+
+    /**
+     * Take two lines (entry and exit) from the budget of the current second
+     */
+    static boolean acquire() {
+        long budget = budget_;
+        return budget <= 0 || windowLines_.addAndGet(2) <= budget;
+    }
+
+    static synchronized void start() {
+        stop();
+        if (budget_ <= 0)
+            return;
+        timer_ = new Timer("betterlogs-trace-sampler", true);
+        timer_.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                rebalance();
+            }
+        }, 1000, 1000);
+    }
+
+    static synchronized void stop() {
+        if (null != timer_) {
+            timer_.cancel();
+            timer_ = null;
+        }
+        for (WeakReference<TraceSite> ref : sites_) {
+            TraceSite site = ref.get();
+            if (null != site)
+                site.adaptiveRate = 1;
+        }
+    }
+
+    /*
+     * Share the budget of calls between the methods called during the last
+     * second: the ones called less than their fair share keep their fixed
+     * rate, the hottest ones are sampled down to the same cap
+     */
+    static void rebalance() {
+        long budgetCalls = budget_ / 2;
+        windowLines_.set(0);
+        List<TraceSite> active = new ArrayList<TraceSite>();
+        for (Iterator<WeakReference<TraceSite>> it = sites_.iterator(); it.hasNext();) {
+            TraceSite site = it.next().get();
+            if (null == site) {
+                it.remove();
+                continue;
+            }
+            long calls = site.calls();
+            site.windowCalls = calls - site.lastCalls;
+            site.lastCalls = calls;
+            if (site.windowCalls > 0)
+                active.add(site);
+            else
+                site.adaptiveRate = 1;
+        }
+        TraceSite[] sites = active.toArray(new TraceSite[active.size()]);
+        // expected logged calls at the fixed rate, ascending
+        Arrays.sort(sites, new Comparator<TraceSite>() {
+            public int compare(TraceSite s1, TraceSite s2) {
+                long c1 = s1.windowCalls / s1.rate, c2 = s2.windowCalls / s2.rate;
+                return c1 < c2 ? -1 : (c1 == c2 ? 0 : 1);
+            }
+        });
+        double remaining = budgetCalls;
+        for (int i = 0; i < sites.length; ++i) {
+            TraceSite site = sites[i];
+            double share = remaining / (sites.length - i);
+            double expected = (double) site.windowCalls / site.rate;
+            if (expected <= share) {
+                site.adaptiveRate = 1;
+                remaining -= expected;
+            } else {
+                // every method left is hotter: cap them all to the same share
+                for (int j = i; j < sites.length; ++j) {
+                    TraceSite s = sites[j];
+                    s.adaptiveRate = share < 1 ? Integer.MAX_VALUE
+                            : (int) Math.min(Integer.MAX_VALUE, (long) Math.ceil(s.windowCalls / share));
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sampling summary for the plugin status
+     */
+    static String status() {
+        long calls = 0, logged = 0;
+        for (WeakReference<TraceSite> ref : sites_) {
+            TraceSite site = ref.get();
+            if (null != site) {
+                calls += site.calls();
+                logged += site.logged();
+            }
+        }
+        return String.format("Trace sampling: calls %s, logged %s, skipped %s, budget %s lines/s", calls,
+                logged, calls - logged, budget_ > 0 ? String.valueOf(budget_) : "none");
+    }
+}
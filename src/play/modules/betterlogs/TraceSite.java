@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trace information of one traced method/constructor.
+ *
+ * <p>{@link BetterLogsEnhancer} resolves the {@link Trace} themes of the
+ * behavior at enhancement time and stores them in a <code>static final</code>
+ * field of the enhanced class, so the entry/exit code does not need to
+ * reflect on the method at each call.
+ */
+public final class TraceSite {
+
+    final String clazz;
+    final String method;
+    final String signature;
+    // null if the behavior is not annotated with @Trace
+    final String[] themes;
+    // null if the behavior is traced whatever the active themes
+    private final TraceThemes.Mask mask_;
+    private final String defaultLabel_;
+    private volatile Label label_;
+    private volatile LatencyHistogram histogram_;
+
+    // index of the probe switch, see TraceSwitches
+    public final int id;
+    // fixed sampling rate, see TraceSampler
+    final int rate;
+    // sampling rate set by TraceSampler to fit the budget
+    volatile int adaptiveRate = 1;
+    private final AtomicLong calls_ = new AtomicLong();
+    private final AtomicLong logged_ = new AtomicLong();
+    // used by TraceSampler.rebalance() only
+    long lastCalls;
+    long windowCalls;
+    // calls exited and their total duration, null unless TracePruner is enabled
+    private final StripedCounter usage_;
+    // used by TracePruner.check() only
+    long prunerCalls;
+    long prunerNanos;
+
+    public TraceSite(String clazz, String method, String signature, String[] themes) {
+        this(clazz, method, signature, themes, 0);
+    }
+
+    /**
+     * @param sampleRate see {@link Trace#sampleRate()}, 0 if not specified
+     */
+    public TraceSite(String clazz, String method, String signature, String[] themes, int sampleRate) {
+        this.clazz = clazz;
+        this.method = method;
+        this.signature = signature;
+        this.themes = themes;
+        if (null == themes) {
+            mask_ = null;
+            defaultLabel_ = "";
+        } else if (themes.length == 0) {
+            mask_ = null;
+            defaultLabel_ = "_"; // default trace theme
+        } else {
+            mask_ = TraceThemes.compile(themes);
+            defaultLabel_ = null;
+        }
+        rate = TraceSampler.rate(this, sampleRate);
+        usage_ = TracePruner.enabled ? new StripedCounter(2) : null;
+        id = TraceSwitches.register(this);
+    }
+
+    /**
+     * The label rendered for a given set of active themes
+     */
+    private static final class Label {
+        final TraceThemes.Mask active;
+        final String text;
+
+        Label(TraceThemes.Mask active, String text) {
+            this.active = active;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Whether the entry/exit of the behavior should be logged
+     */
+    public boolean enabled() {
+        return null == mask_ || mask_.intersects(TraceThemes.active());
+    }
+
+    /**
+     * Whether the level and the themes of the entry/exit logs are enabled,
+     * regardless of the sampling
+     */
+    boolean traced() {
+        return LogSite.isEnabled(TraceSampler.level) && enabled();
+    }
+
+    /**
+     * Whether the entry/exit of the call starting should be logged: the level
+     * and the themes are enabled and the call is sampled. Calls skipped by
+     * the sampling are counted
+     */
+    boolean sample() {
+        if (!traced())
+            return false;
+        long n = calls_.incrementAndGet();
+        int rate = Math.max(this.rate, adaptiveRate);
+        if (rate > 1 && 0 != (n - 1) % rate) // the first call is logged
+            return false;
+        if (!TraceSampler.acquire())
+            return false;
+        logged_.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Number of calls to be logged if there were no sampling
+     */
+    long calls() {
+        return calls_.get();
+    }
+
+    /**
+     * Number of calls logged
+     */
+    long logged() {
+        return logged_.get();
+    }
+
+    /**
+     * Count a call exited, for {@link TracePruner}
+     */
+    void exited(long nanos) {
+        StripedCounter usage = usage_;
+        if (null != usage) {
+            usage.add(TracePruner.CALLS, 1);
+            usage.add(TracePruner.NANOS, nanos);
+        }
+    }
+
+    /**
+     * The calls exited (TracePruner.CALLS) or their total duration in
+     * nanoseconds (TracePruner.NANOS), 0 unless TracePruner is enabled
+     */
+    long usage(int counter) {
+        return null == usage_ ? 0 : usage_.sum(counter);
+    }
+
+    /**
+     * The themes to be displayed in the entry/exit log
+     */
+    public String label() {
+        if (null == mask_)
+            return defaultLabel_;
+        TraceThemes.Mask active = TraceThemes.active();
+        Label label = label_;
+        if (null == label || label.active != active) {
+            label = new Label(active, mask_.intersection(active));
+            label_ = label;
+        }
+        return label.text;
+    }
+
+    /**
+     * The latency histogram of the behavior, shared with the other sites of
+     * the same method if the class has been enhanced again
+     */
+    LatencyHistogram histogram() {
+        LatencyHistogram histogram = histogram_;
+        if (null == histogram) {
+            histogram = TimeTracker.histogram(toString());
+            histogram_ = histogram;
+        }
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return clazz + "." + method + signature;
+    }
+}
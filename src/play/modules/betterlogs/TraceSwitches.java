@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runtime on/off switches of the trace probes.
+ *
+ * <p>Each {@link TraceSite} gets an id when its class is initialized, the
+ * probes injected in the method check <code>TraceSwitches.on(id)</code>
+ * first: a switched off probe costs one array read and one branch. The
+ * switches are flipped by package, class, method or theme with
+ * {@link #enable(String)} and {@link #disable(String)}; the rules are kept and
+ * applied to the classes loaded later too. The probes of a method pruned
+ * by {@link TracePruner} stay off whatever the rules.
+ *
+ * <p>The flag array is copied on write, readers see a consistent array
+ * through a volatile reference.
+ */
+public final class TraceSwitches {
+
+    private static final String THEME = "theme:";
+
+    private static volatile boolean[] flags_ = new boolean[1024];
+    private static WeakReference<?>[] sites_ = new WeakReference<?>[1024];
+    private static int count_ = 0;
+
+    // whether the probes are on when no rule applies
+    private static boolean default_ = true;
+    // {pattern, "on"|"off"}, in the order they have been applied
+    private static final List<String[]> rules_ = new ArrayList<String[]>();
+    // the methods pruned ("class.method(signature)"), kept for the classes reloaded
+    private static final Set<String> pruned_ = new HashSet<String>();
+
+    private TraceSwitches() {
+    }
+
+    /**
+     * Whether the probes of the traced method specified are on
+     */
+    public static boolean on(int id) {
+        return flags_[id];
+    }
+
+    /**
+     * Assign an id to a new traced method
+     */
+    static synchronized int register(TraceSite site) {
+        int id = count_++;
+        boolean[] flags = flags_;
+        if (id == flags.length) {
+            sites_ = Arrays.copyOf(sites_, id * 2);
+            flags = Arrays.copyOf(flags, id * 2);
+        }
+        sites_[id] = new WeakReference<TraceSite>(site);
+        boolean on = default_;
+        for (String[] rule : rules_) {
+            if (matches_(site, rule[0]))
+                on = "on".equals(rule[1]);
+        }
+        // the class of the site is not initialized yet, its probes could not run before this is published
+        flags[id] = on && !pruned_.contains(site.toString());
+        flags_ = flags;
+        return id;
+    }
+
+    /**
+     * Set whether the probes are on when no rule applies, and forget the rules
+     */
+    static synchronized void reset(boolean on) {
+        default_ = on;
+        rules_.clear();
+        boolean[] flags = flags_.clone();
+        for (int id = 0; id < count_; ++id) {
+            TraceSite site = (TraceSite) sites_[id].get();
+            flags[id] = on && (null == site || !pruned_.contains(site.toString()));
+        }
+        flags_ = flags;
+    }
+
+    /**
+     * Switch on the probes of the methods matching the pattern: a package, a
+     * class, a method (all overloads), "theme:&lt;theme&gt;" or "*"
+     *
+     * @return the number of traced methods switched on
+     */
+    public static int enable(String pattern) {
+        return set_(pattern, true);
+    }
+
+    /**
+     * Switch off the probes of the methods matching the pattern, see
+     * {@link #enable(String)}
+     *
+     * @return the number of traced methods switched off
+     */
+    public static int disable(String pattern) {
+        return set_(pattern, false);
+    }
+
+    private static synchronized int set_(String pattern, boolean on) {
+        pattern = pattern.trim();
+        rules_.add(new String[] { pattern, on ? "on" : "off" });
+        boolean[] flags = flags_.clone();
+        int n = 0;
+        for (int id = 0; id < count_; ++id) {
+            TraceSite site = (TraceSite) sites_[id].get();
+            if (null != site && matches_(site, pattern) && flags[id] != on
+                    && !(on && pruned_.contains(site.toString()))) {
+                flags[id] = on;
+                n++;
+            }
+        }
+        flags_ = flags;
+        return n;
+    }
+
+    /**
+     * Switch off the probes of a traced method for good, see
+     * {@link TracePruner}
+     *
+     * @return false if already pruned
+     */
+    static synchronized boolean prune(TraceSite site) {
+        if (!pruned_.add(site.toString()))
+            return false;
+        boolean[] flags = flags_.clone();
+        for (int id = 0; id < count_; ++id) {
+            TraceSite s = (TraceSite) sites_[id].get();
+            if (null != s && s.toString().equals(site.toString()))
+                flags[id] = false;
+        }
+        flags_ = flags;
+        return true;
+    }
+
+    static synchronized boolean pruned(TraceSite site) {
+        return pruned_.contains(site.toString());
+    }
+
+    /**
+     * The number of traced methods pruned
+     */
+    static synchronized int prunedCount() {
+        return pruned_.size();
+    }
+
+    private static boolean matches_(TraceSite site, String pattern) {
+        if ("*".equals(pattern))
+            return true;
+        if (pattern.startsWith(THEME)) {
+            if (null == site.themes)
+                return false;
+            String theme = pattern.substring(THEME.length());
+            for (String name : TraceThemes.compile(site.themes).names) {
+                if (name.equals(theme))
+                    return true;
+            }
+            return false;
+        }
+        String name = site.clazz + "." + site.method;
+        return name.equals(pattern) || name.startsWith(pattern + ".");
+    }
+
+    /**
+     * The traced methods still loaded
+     */
+    static synchronized List<TraceSite> sites() {
+        List<TraceSite> sites = new ArrayList<TraceSite>(count_);
+        for (int id = 0; id < count_; ++id) {
+            TraceSite site = (TraceSite) sites_[id].get();
+            if (null != site)
+                sites.add(site);
+        }
+        return sites;
+    }
+
+    /**
+     * The traced methods matching the pattern, with the state of their probes
+     */
+    public static synchronized List<String> list(String pattern) {
+        List<String> list = new ArrayList<String>();
+        boolean[] flags = flags_;
+        for (int id = 0; id < count_; ++id) {
+            TraceSite site = (TraceSite) sites_[id].get();
+            if (null != site && (null == pattern || matches_(site, pattern)))
+                list.add((flags[id] ? "on  " : "off ") + site + (pruned_.contains(site.toString()) ? " (pruned)" : ""));
+        }
+        return list;
+    }
+
+    /**
+     * The rules applied since the start, e.g. "on controllers.Application"
+     */
+    public static synchronized List<String> rules() {
+        List<String> list = new ArrayList<String>();
+        list.add((default_ ? "on" : "off") + " (default)");
+        for (String[] rule : rules_)
+            list.add(rule[1] + " " + rule[0]);
+        return list;
+    }
+}
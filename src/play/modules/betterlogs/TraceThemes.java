@@ -0,0 +1,183 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of trace themes.
+ *
+ * <p>Each theme name gets a small integer id, and a set of themes is compiled
+ * once to a bit mask. The themes set with {@link #set(String...)} are
+ * published as an immutable mask through a volatile reference, so matching
+ * the themes of a traced method is a lock free AND of their masks.
+ */
+public final class TraceThemes {
+
+    private static final Pattern SEPARATOR = Pattern.compile("[\\s+,;:]+");
+
+    private static final ConcurrentHashMap<String, Integer> ids_ = new ConcurrentHashMap<String, Integer>();
+    private static final AtomicInteger nextId_ = new AtomicInteger();
+
+    private static volatile Mask active_ = compile("");
+
+    private TraceThemes() {
+    }
+
+    /**
+     * An immutable set of themes
+     */
+    static final class Mask {
+        // the original string when set via setIfChanged
+        final String source;
+        // the themes, in declaration order and without duplicates
+        final String[] names;
+        final int[] ids;
+        // bits 0 to 63, kept apart for the common case
+        final long word0;
+        final long[] words;
+
+        Mask(String source, String[] names, int[] ids) {
+            this.source = source;
+            this.names = names;
+            this.ids = ids;
+            int max = -1;
+            for (int id : ids)
+                max = Math.max(max, id);
+            words = new long[max < 0 ? 1 : (max >> 6) + 1];
+            for (int id : ids)
+                words[id >> 6] |= 1L << id;
+            word0 = words[0];
+        }
+
+        boolean intersects(Mask other) {
+            if (0 != (word0 & other.word0))
+                return true;
+            int n = Math.min(words.length, other.words.length);
+            for (int i = 1; i < n; ++i) {
+                if (0 != (words[i] & other.words[i]))
+                    return true;
+            }
+            return false;
+        }
+
+        boolean contains(int id) {
+            int i = id >> 6;
+            return i < words.length && 0 != (words[i] & (1L << id));
+        }
+
+        /**
+         * The themes of this mask found in the other one, separated by ","
+         */
+        String intersection(Mask other) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < ids.length; ++i) {
+                if (other.contains(ids[i])) {
+                    if (sb.length() > 0)
+                        sb.append(",");
+                    sb.append(names[i]);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    static int id(String theme) {
+        Integer id = ids_.get(theme);
+        if (null == id) {
+            Integer newId = nextId_.getAndIncrement();
+            id = ids_.putIfAbsent(theme, newId);
+            if (null == id)
+                id = newId;
+        }
+        return id;
+    }
+
+    /**
+     * Compile the themes specified, each one could contain several themes
+     * separated by spaces, "+", ",", ";" or ":"
+     */
+    static Mask compile(String... themes) {
+        return compile_(null, themes);
+    }
+
+    private static Mask compile_(String source, String... themes) {
+        List<String> names = new ArrayList<String>();
+        for (String s : themes) {
+            for (String name : SEPARATOR.split(s)) {
+                if (name.length() > 0 && !names.contains(name))
+                    names.add(name);
+            }
+        }
+        int[] ids = new int[names.size()];
+        for (int i = 0; i < ids.length; ++i)
+            ids[i] = id(names.get(i));
+        return new Mask(source, names.toArray(new String[names.size()]), ids);
+    }
+
+    static Mask active() {
+        return active_;
+    }
+
+    /**
+     * The active themes, separated by ","
+     */
+    static String activeNames() {
+        StringBuilder sb = new StringBuilder();
+        for (String name : active_.names) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(name);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replace the active themes. Threads checking the themes concurrently see
+     * either the previous or the new set, never a partial one
+     */
+    public static void set(String... themes) {
+        active_ = compile(themes);
+    }
+
+    /**
+     * Replace the active themes with the ones of the string specified, unless
+     * they have already been set from the same string
+     */
+    public static void setIfChanged(String themes) {
+        if (!themes.equals(active_.source))
+            active_ = compile_(themes, themes);
+    }
+
+    /**
+     * Whether there is any theme found in both the themes specified and the
+     * active themes
+     */
+    public static boolean match(String... themes) {
+        return compile(themes).intersects(active_);
+    }
+
+    /**
+     * The themes specified which are active, separated by ","
+     */
+    public static String matched(String... themes) {
+        return compile(themes).intersection(active_);
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2011 Stephane Godbillon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package play.modules.betterlogs;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Renders the parameters and the return value of a traced call within a
+ * budget, see {@link Trace#capture()}.
+ *
+ * <p>Called by the trace probes only once the entry or the exit is going to
+ * be logged. Primitives are appended without boxing, strings are quoted and
+ * truncated, arrays, collections and maps are rendered up to
+ * {@link #maxElements} elements and {@link #maxDepth} levels of nesting.
+ * Other objects are rendered as their class and identity hash, or with
+ * <code>toString()</code> if {@link #useToString}. Rendering stops once
+ * {@link #maxChars} characters have been written. A value failing to
+ * render, e.g. a collection modified concurrently, is rendered as
+ * <code>&lt;error: exception&gt;</code>: the probes never throw into the
+ * traced method. Lazy collections of Hibernate not initialized yet are not
+ * loaded.
+ */
+public final class ValueRenderer {
+
+    static volatile int maxChars = 256;
+    static volatile int maxElements = 8;
+    static volatile int maxDepth = 2;
+    static volatile boolean useToString = false;
+
+    private static final ThreadLocal<ValueRenderer> renderer_ = new ThreadLocal<ValueRenderer>() {
+        @Override
+        protected ValueRenderer initialValue() {
+            return new ValueRenderer();
+        }
+    };
+
+    private final StringBuilder sb_ = new StringBuilder(64);
+    private int limit_;
+    private int elements_;
+    private int depth_;
+    private boolean full_;
+    // while rendering an object, whose toString() or iteration might call a traced method
+    private boolean busy_;
+
+    private ValueRenderer() {
+    }
+
+    /**
+     * The renderer of the current thread, empty. A new one if the renderer
+     * of the thread is in use, e.g. by a toString() calling a traced method
+     */
+    public static ValueRenderer get() {
+        ValueRenderer r = renderer_.get();
+        if (r.busy_)
+            r = new ValueRenderer();
+        r.sb_.setLength(0);
+        r.limit_ = maxChars;
+        r.elements_ = maxElements;
+        r.depth_ = maxDepth;
+        r.full_ = false;
+        return r;
+    }
+
+    /**
+     * The text rendered, the renderer could be used again afterwards
+     */
+    public String end() {
+        String s = sb_.toString();
+        if (sb_.capacity() > 4 * Math.max(64, limit_))
+            sb_.trimToSize();
+        return s;
+    }
+
+    /**
+     * Start a parameter
+     */
+    public ValueRenderer name(String name) {
+        if (full_)
+            return this;
+        if (sb_.length() > 0)
+            sb_.append(", ");
+        sb_.append(name).append('=');
+        return check_();
+    }
+
+    public ValueRenderer value(boolean v) {
+        if (!full_)
+            sb_.append(v);
+        return check_();
+    }
+
+    public ValueRenderer value(char v) {
+        if (!full_)
+            sb_.append('\'').append(v).append('\'');
+        return check_();
+    }
+
+    public ValueRenderer value(int v) {
+        if (!full_)
+            sb_.append(v);
+        return check_();
+    }
+
+    public ValueRenderer value(long v) {
+        if (!full_)
+            sb_.append(v);
+        return check_();
+    }
+
+    public ValueRenderer value(float v) {
+        if (!full_)
+            sb_.append(v);
+        return check_();
+    }
+
+    public ValueRenderer value(double v) {
+        if (!full_)
+            sb_.append(v);
+        return check_();
+    }
+
+    public ValueRenderer value(Object v) {
+        if (full_)
+            return this;
+        int start = sb_.length();
+        busy_ = true;
+        try {
+            render_(v, depth_);
+        } catch (RuntimeException e) {
+            sb_.setLength(start);
+            full_ = false;
+            sb_.append("<error: ").append(e.getClass().getSimpleName()).append('>');
+        } finally {
+            busy_ = false;
+        }
+        return check_();
+    }
+
+    private ValueRenderer check_() {
+        if (!full_ && sb_.length() > limit_) {
+            sb_.setLength(limit_);
+            sb_.append("...");
+            full_ = true;
+        }
+        return this;
+    }
+
+    private void render_(Object v, int depth) {
+        if (full_)
+            return;
+        if (null == v) {
+            sb_.append("null");
+        } else if (v instanceof CharSequence) {
+            CharSequence cs = (CharSequence) v;
+            int room = limit_ - sb_.length();
+            sb_.append('"');
+            if (cs.length() > room) {
+                sb_.append(cs, 0, Math.max(0, room)).append("...");
+                full_ = true;
+                return;
+            }
+            sb_.append(cs).append('"');
+        } else if (v instanceof Number || v instanceof Boolean) {
+            sb_.append(v.toString());
+        } else if (v instanceof Character) {
+            sb_.append('\'').append(((Character) v).charValue()).append('\'');
+        } else if (v instanceof Enum) {
+            sb_.append(((Enum<?>) v).name());
+        } else if (v instanceof Class) {
+            sb_.append(((Class<?>) v).getName());
+        } else if (v.getClass().isArray()) {
+            if (depth <= 0) {
+                sb_.append(v.getClass().getComponentType().getSimpleName()).append("[").append(Array.getLength(v)).append("]");
+                return;
+            }
+            int n = Array.getLength(v);
+            sb_.append('[');
+            for (int i = 0; i < n && !full_; ++i) {
+                if (i > 0)
+                    sb_.append(", ");
+                if (i == elements_) {
+                    sb_.append("...(").append(n).append(')');
+                    break;
+                }
+                render_(Array.get(v, i), depth - 1);
+                check_();
+            }
+            if (!full_)
+                sb_.append(']');
+        } else if (lazy_(v)) {
+            sb_.append(v.getClass().getSimpleName()).append("(lazy)");
+        } else if (v instanceof Collection) {
+            Collection<?> c = (Collection<?>) v;
+            if (depth <= 0) {
+                sb_.append(v.getClass().getSimpleName()).append("(").append(c.size()).append(")");
+                return;
+            }
+            sb_.append('[');
+            int i = 0;
+            for (Iterator<?> it = c.iterator(); it.hasNext() && !full_; ++i) {
+                if (i > 0)
+                    sb_.append(", ");
+                if (i == elements_) {
+                    sb_.append("...(").append(c.size()).append(')');
+                    break;
+                }
+                render_(it.next(), depth - 1);
+                check_();
+            }
+            if (!full_)
+                sb_.append(']');
+        } else if (v instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) v;
+            if (depth <= 0) {
+                sb_.append(v.getClass().getSimpleName()).append("(").append(m.size()).append(")");
+                return;
+            }
+            sb_.append('{');
+            int i = 0;
+            for (Iterator<? extends Map.Entry<?, ?>> it = m.entrySet().iterator(); it.hasNext() && !full_; ++i) {
+                if (i > 0)
+                    sb_.append(", ");
+                if (i == elements_) {
+                    sb_.append("...(").append(m.size()).append(')');
+                    break;
+                }
+                Map.Entry<?, ?> e = it.next();
+                render_(e.getKey(), depth - 1);
+                sb_.append('=');
+                render_(e.getValue(), depth - 1);
+                check_();
+            }
+            if (!full_)
+                sb_.append('}');
+        } else if (useToString) {
+            String s;
+            try {
+                s = v.toString();
+            } catch (Throwable t) {
+                s = v.getClass().getName() + "(" + t + ")";
+            }
+            int room = limit_ - sb_.length();
+            if (null != s && s.length() > room) {
+                sb_.append(s, 0, Math.max(0, room)).append("...");
+                full_ = true;
+                return;
+            }
+            sb_.append(s);
+        } else {
+            sb_.append(v.getClass().getSimpleName()).append('@').append(Integer.toHexString(System.identityHashCode(v)));
+        }
+    }
+
+    /*
+     * Whether the object is a collection or a map of Hibernate not loaded yet
+     */
+    private static boolean lazy_(Object v) {
+        if (!(v instanceof Collection || v instanceof Map))
+            return false;
+        for (Class<?> c = v.getClass(); null != c; c = c.getSuperclass()) {
+            for (Class<?> i : c.getInterfaces()) {
+                String name = i.getName();
+                if ("org.hibernate.collection.PersistentCollection".equals(name)
+                        || "org.hibernate.collection.spi.PersistentCollection".equals(name)) {
+                    try {
+                        Method wasInitialized = i.getMethod("wasInitialized");
+                        return !((Boolean) wasInitialized.invoke(v)).booleanValue();
+                    } catch (Exception e) {
+                        return true; // not to load it
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    static void configure(int maxChars, int maxElements, int maxDepth, boolean useToString) {
+        ValueRenderer.maxChars = Math.max(16, maxChars);
+        ValueRenderer.maxElements = Math.max(0, maxElements);
+        ValueRenderer.maxDepth = Math.max(0, maxDepth);
+        ValueRenderer.useToString = useToString;
+    }
+}